@@ -0,0 +1,115 @@
+package client;
+
+import common.Actor;
+import common.Actor.ActorType;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An ActorRenderer holds everything needed to draw actors on the client, so
+ * that the actors themselves (which the server also uses) carry no images.
+ * One sprite is drawn for each actor type and colour and reused every frame.
+ * @author Simon, Daniel, AIM
+ */
+class ActorRenderer {
+
+    // Maximum size of an onscreen object
+    private static final int SPRITE_DIM = 20;
+    private static final Polygon NEEDLE = new Polygon(new int[] {0, 4, 0, 20},
+                                    new int[] {6, 10, 14, 10},
+                                    4);
+    private static final Polygon WEDGE = new Polygon(new int[] {3, 15, 3, 0},
+                                    new int[] {3, 10, 17, 10},
+                                    4);
+    // Missiles are just drawn as simple boxes at the moment.
+    private static final Polygon MISSILE = new Polygon(new int[] {8, 12, 12, 8},
+                                               new int[] {8, 8, 12, 12},
+                                               4);
+    // A star is basically just a whole mess of lines.
+    private static final Polygon STAR = new Polygon(new int[] {10, 20, 11, 10, 9, 0, 10,
+                                                          10, 9, 5, 15, 11, 5, 15},
+                                               new int[] {10, 10, 11, 20, 9, 10, 10,
+                                                          0, 11, 5, 15, 9, 15, 5},
+                                               14);
+    private final Map<ActorType, Map<Double, BufferedImage>> sprites;
+    private final AffineTransform trans;
+
+    /**
+     * Creates a renderer with no sprites drawn yet
+     */
+    ActorRenderer() {
+        sprites = new EnumMap<ActorType, Map<Double, BufferedImage>>(ActorType.class);
+        for (ActorType type : ActorType.values()) {
+            sprites.put(type, new HashMap<Double, BufferedImage>());
+        }
+        trans = new AffineTransform();
+    }
+
+    /**
+     * Renders an actor's sprite at its position and heading
+     * @param graphics the Graphics2D object to draw to
+     * @param actor The actor to draw
+     */
+    void draw(Graphics2D graphics, Actor actor) {
+        // Note ordering here: first transform you want to apply gets
+        // added last in the sequence
+        trans.setToTranslation(actor.getX(), actor.getY());
+        trans.rotate(actor.getHeading());
+        trans.translate(-SPRITE_DIM / 2, -SPRITE_DIM / 2);  // Center the image
+        graphics.drawRenderedImage(getSprite(actor), trans);
+    }
+
+    /**
+     * @return The cached sprite for an actor, drawing it the first time
+     */
+    private BufferedImage getSprite(Actor actor) {
+        ActorType type = ActorType.fromInt(actor.getActorType());
+        Map<Double, BufferedImage> byColour = sprites.get(type);
+        BufferedImage sprite = byColour.get(actor.getColour());
+        if (sprite == null) {
+            sprite = createSprite(type, actor.getColour());
+            byColour.put(actor.getColour(), sprite);
+        }
+        return sprite;
+    }
+
+    /**
+     * Draws the sprite for a type of actor
+     * @param type The type of actor
+     * @param colour The hue the server gave the actor
+     * @return A new sprite
+     */
+    private static BufferedImage createSprite(ActorType type, double colour) {
+        BufferedImage sprite = new BufferedImage(SPRITE_DIM, SPRITE_DIM,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D spriteGraphics = sprite.createGraphics();
+        spriteGraphics.setColor(Color.getHSBColor((float) colour, 0.5f, 0.5f));
+        switch (type) {
+            case NEEDLE:
+                spriteGraphics.setColor(Color.decode("0xAFD775"));
+                spriteGraphics.fillPolygon(NEEDLE);
+                break;
+            case WEDGE:
+                spriteGraphics.fillPolygon(WEDGE);
+                break;
+            case STAR:
+                spriteGraphics.setColor(Color.YELLOW);
+                spriteGraphics.drawPolygon(STAR);
+                break;
+            case MISSILE:
+                spriteGraphics.setColor(Color.getHSBColor((float) colour, 1f, 1f));
+                spriteGraphics.drawPolygon(MISSILE);
+                break;
+            default:
+                break;
+        }
+        spriteGraphics.dispose();
+        return sprite;
+    }
+}
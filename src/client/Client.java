@@ -5,20 +5,28 @@ import common.Actor.ActorType;
 import common.Command;
 import common.Connection.Server;
 import common.Game;
+import common.Recording;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 /**
  * A client object bundles the user interface (display and input) along with
  * a ServerManager object to track all servers that the client is connected to.
+ * Snapshots are buffered as they arrive and the game is drawn at the display
+ * rate from an InterpolationBuffer, slightly behind the server, except for
+ * the player's own spacecraft which is drawn where its Prediction says.
+ * A spectator Client instead only draws the snapshots a server multicasts
+ * on the LAN, without joining it or any other server, and a playback
+ * Client draws a Recording, seeking back and forward with the turning keys.
  * @author Simon, Daniel
  */
 public class Client extends Thread {
 
+    private final int id;
     private final InputHandler input;
     private final Display display;
     private Map<Integer, Actor> currentActors;
@@ -26,9 +34,15 @@ public class Client extends Thread {
     private final double[] actorBuffer;
     private int hyperCoolDown;
     private static final int HYPERPERIOD = 5;
+    private static final long FRAME_PERIOD = 16;      // About 60 frames a second
+    private static final int SEEK_STEP = 100;         // Ticks skipped by a seek
+    private final InterpolationBuffer interpolation;
+    private final Prediction prediction;
+    private final SnapshotReceiver receiver;
     private final ServerManager serverManager;
-    private final Collection<String> clientNames;
+    private final Recording.Reader playback;
     private Server server;
+    private List<String> clientNames;   // The roster last shown
 
     /**
      * Creates a new Client which blocks until the local
@@ -38,39 +52,202 @@ public class Client extends Thread {
      * @throws IOException if there is an error in the TCP protocol
      */
     public Client(int port) throws IOException {
-        super("Client");
-        serverManager = new ServerManager(port, Game.rand.nextInt());
+        this(Game.rand.nextInt(), port);
+    }
+
+    /**
+     * Creates a new spectator Client, which connects to the game server or
+     * relay at host:port, or otherwise blocks until a server on the LAN is
+     * found multicasting its snapshots.
+     *
+     * @param spectate host:port, or a multicasting server's TCP port, or
+     * "any" for the first found
+     * @throws IOException if the server's snapshots cannot be had
+     */
+    public Client(String spectate) throws IOException {
+        this("Spectator", 0, null, ServerManager.findSpectatorStream(spectate), null);
+        System.out.println("Spectating " + server.getName() + " game");
+    }
+
+    /**
+     * Creates a new playback Client, which joins no server.
+     *
+     * @param playback The recording to play back
+     */
+    public Client(Recording.Reader playback) {
+        this("Playback", 0, null, null, playback);
+    }
+
+    /**
+     * Creates a new Client for a player, whose ID its ServerManager needs too
+     */
+    private Client(int id, int port) throws IOException {
+        this("Client", id, new ServerManager(port, id), null, null);
+    }
+
+    /**
+     * Sets up what every kind of Client draws with
+     *
+     * @param name The thread's name
+     * @param id The client's ID, 0 if it does not play
+     * @param serverManager The servers to play on, null if not playing
+     * @param server The server being spectated, null if not spectating
+     * @param playback The recording to play back, null if not playing back
+     */
+    private Client(String name, int id, ServerManager serverManager, Server server,
+            Recording.Reader playback) {
+        super(name);
+        this.id = id;
+        this.serverManager = serverManager;
+        this.server = server;
+        this.playback = playback;
         input = new InputHandler();
         currentActors = new HashMap<Integer, Actor>(50);
         nextActors = new HashMap<Integer, Actor>(50);
         display = new Display(Game.APPSIZE, input);
         actorBuffer = new double[Actor.NUM_ELEMENTS];
-        clientNames = new LinkedList<String>();
+        interpolation = new InterpolationBuffer();
+        prediction = new Prediction(id);
+        receiver = new SnapshotReceiver();
     }
 
     /**
-     * The client side of the main game loop
+     * The client side of the main game loop. The keys held are sent once a
+     * tick, the game is drawn every frame with whatever snapshots the
+     * SnapshotReceiver has read since the last.
      */
     @Override
     public void run() {
+        if (playback != null) {
+            play();
+            return;
+        }
+        if (serverManager == null) {
+            spectate();
+            return;
+        }
         serverManager.start();
         server = serverManager.getCurrent();
         Server lastServer = server;
+        receiver.follow(server);
+        receiver.start();
+        long lastSent = 0;
+        long nextFrame = System.currentTimeMillis();
         while (true) {
             try {
-                handleCommands(input.read());
                 server = serverManager.getCurrent();
+                long now = System.currentTimeMillis();
                 if (server != lastServer) {
+                    receiver.follow(server);
                     currentActors.clear();
+                    interpolation.clear();
+                    prediction.clear();
+                    loadPrefetched();
                 }
                 lastServer = server;
-                receiveState();
-                updateDisplay();
+                receiver.watch(serverManager.getNext());
+                receiveState(now);
+                if (now - lastSent >= Game.GAME_PERIOD) {
+                    // Keep to the tick rate on average, unless far behind
+                    lastSent = Math.max(lastSent + Game.GAME_PERIOD, now - Game.GAME_PERIOD);
+                    handleCommands(input.read(), now);
+                }
+                updateDisplay(now);
             } catch (IOException e) {
                 serverManager.removeCurrent();
                 server = serverManager.getCurrent();
                 continue;
             }
+            nextFrame = Math.max(nextFrame + FRAME_PERIOD, System.currentTimeMillis());
+            try {
+                Thread.sleep(Math.max(1, nextFrame - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The spectator's loop, which draws the game every frame and only
+     * acknowledges the snapshots, if it is connected to send anything.
+     * Only EXIT is read from the keys.
+     */
+    private void spectate() {
+        receiver.follow(server);
+        receiver.start();
+        EnumSet<Command> none = EnumSet.noneOf(Command.class);
+        long lastSent = 0;
+        long nextFrame = System.currentTimeMillis();
+        while (!input.read().contains(Command.EXIT)) {
+            try {
+                long now = System.currentTimeMillis();
+                if (now - lastSent >= Game.GAME_PERIOD) {
+                    lastSent = now;
+                    server.send(none);
+                }
+                receiveState(now);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(-1);
+            }
+            updateDisplay(System.currentTimeMillis());
+            nextFrame = Math.max(nextFrame + FRAME_PERIOD, System.currentTimeMillis());
+            try {
+                Thread.sleep(Math.max(1, nextFrame - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * The playback loop, which reads a tick of the recording every tick and
+     * draws it as though it had just arrived. Holding TURN_CCW or TURN_CW
+     * seeks SEEK_STEP ticks back or forward every tick.
+     */
+    private void play() {
+        long lastRead = 0;
+        long nextFrame = System.currentTimeMillis();
+        try {
+            if (!playback.seek(playback.getFirstTick())) {
+                System.err.println("Nothing recorded");
+                System.exit(-1);
+            }
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (now - lastRead >= Game.GAME_PERIOD) {
+                    lastRead = Math.max(lastRead + Game.GAME_PERIOD, now - Game.GAME_PERIOD);
+                    EnumSet<Command> commands = input.read();
+                    if (commands.contains(Command.EXIT)) {
+                        System.exit(0);
+                    }
+                    int seek = commands.contains(Command.TURN_CW) ? SEEK_STEP
+                            : commands.contains(Command.TURN_CCW) ? -SEEK_STEP : 0;
+                    if (seek != 0) {
+                        int from = playback.getTick();
+                        if (!playback.seek(from + seek)) {
+                            playback.seek(playback.getFirstTick());
+                        }
+                        if (playback.getTick() != from) {
+                            currentActors.clear();
+                            interpolation.clear();
+                            interpolation.add(playback.getSnapshot(), now);
+                        }
+                    } else if (playback.next()) {
+                        interpolation.add(playback.getSnapshot(), now);
+                    }
+                    showClientNames(playback.getRoster().getNames());
+                }
+                updateDisplay(now);
+                nextFrame = Math.max(nextFrame + FRAME_PERIOD, System.currentTimeMillis());
+                Thread.sleep(Math.max(1, nextFrame - System.currentTimeMillis()));
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        } catch (InterruptedException e) {
+            // Stop playing
         }
     }
 
@@ -78,9 +255,10 @@ public class Client extends Thread {
      * Sends commands onto the current server after giving special handling to
      * EXIT and HYPERSPACE
      * @param commands The current command set
+     * @param now The current time in milliseconds
      * @throws IOException if the server cannot be contacted
      */
-    private void handleCommands(EnumSet<Command> commands) throws IOException {
+    private void handleCommands(EnumSet<Command> commands, long now) throws IOException {
         if (commands.contains(Command.EXIT)) {
             System.exit(0);
         }
@@ -97,38 +275,79 @@ public class Client extends Thread {
         if (hyperCoolDown > 0) {
             hyperCoolDown--;
         }
-        server.send(commands);
+        prediction.record(server.send(commands), commands, now);
     }
 
     /**
-     * Retrieves headers and actor streams from the connection to
-     * the current server.
+     * Buffers the latest snapshot from the current server, if one has been
+     * received since the last call.
+     * @param now The current time in milliseconds
+     * @throws IOException If the current server has failed
+     */
+    private void receiveState(long now) throws IOException {
+        if (receiver.hasFailed(server)) {
+            throw new IOException("Lost " + server.getName());
+        }
+        SnapshotReceiver.Received received = receiver.take();
+        if (received == null) {
+            return;
+        }
+        // Anything from the previous server is no use
+        if (received.server == server) {
+            interpolation.add(received.snapshot, received.arrival);
+            prediction.reconcile(received.snapshot, received.appliedInput, received.velocity, now);
+            showClientNames(received.names);
+        }
+        receiver.release(received);
+    }
+
+    /**
+     * Starts the interpolation buffer off with the snapshot received while
+     * the server just joined was being watched, if there is one, so that
+     * the game there can be drawn before the first snapshot as a player.
+     */
+    private void loadPrefetched() {
+        SnapshotReceiver.Received prefetched = receiver.takePrefetched(server);
+        if (prefetched != null) {
+            interpolation.add(prefetched.snapshot, prefetched.arrival);
+            showClientNames(prefetched.names);
+            receiver.release(prefetched);
+        }
+    }
+
+    private void showClientNames(List<String> names) {
+        if (names != clientNames) {
+            clientNames = names;
+            display.setClientNames(clientNames);
+        }
+    }
+
+    /**
+     * Loads the interpolated game state into the display
+     * and requests a repaint.
      *
      * The actors already isntantiated are stored in a double
      * buffered hashmap with the actor object mapped to it's
      * unique id. If an incoming actor does not match an
      * existing one then it is instantiated.
-     * @throws IOException If there is a communication failure
+     * @param now The current time in milliseconds
      */
-    private void receiveState() throws IOException {
-        int numActors = server.receiveHeaders(clientNames);
+    private void updateDisplay(long now) {
+        int numActors = interpolation.interpolate(now);
         for (int i = 0; i < numActors; i++) {
-            int actorID = server.receiveActor(actorBuffer, i);
+            int actorID = interpolation.getID(i);
+            interpolation.getState(i, actorBuffer);
+            if (actorID == id) {
+                prediction.getState(now, actorBuffer);
+            }
             if (currentActors.containsKey(actorID)) {
                 currentActors.get(actorID).updateFromStream(actorBuffer);
                 nextActors.put(actorID, currentActors.get(actorID));
             } else {
-                ActorType type = server.getActorType(i);
+                ActorType type = ActorType.fromInt(interpolation.getType(i));
                 nextActors.put(actorID, Actor.fromBuffer(type, actorID, actorBuffer));
             }
         }
-    }
-
-    /**
-     * Loads the current game state into the display
-     * and requests a repaint.
-     */
-    private void updateDisplay() {
         display.loadActors(nextActors.values());
         Map<Integer, Actor> temp = currentActors;
 
@@ -136,12 +355,14 @@ public class Client extends Thread {
         currentActors = nextActors;
         nextActors = temp;
         nextActors.clear();
-        display.setServerNames(
-                serverManager.getNames(),
-                serverManager.getCurrentIndex());
-
-        display.setClientNames(clientNames);
-        clientNames.clear();
+        if (playback != null) {
+            display.setServerNames(Collections.singletonList("Tick " + playback.getTick()), 0, -1);
+        } else if (serverManager != null) {
+            display.setServerNames(
+                    serverManager.getNames(),
+                    serverManager.getCurrentIndex(),
+                    serverManager.getNextIndex());
+        }
 
         display.repaint();
     }
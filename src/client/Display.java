@@ -29,7 +29,9 @@ class Display extends Canvas {
     private final List<Actor> actors;
     private final List<String> serverNames;
     private int currentServer = 0;
+    private int selectedServer = -1;
     private final Collection<String> clientNames;
+    private final ActorRenderer renderer;
 
     /**
      * Create a new Display of the given size. Needs to match up to the
@@ -42,6 +44,7 @@ class Display extends Canvas {
         actors = new LinkedList<Actor>();
         serverNames = new ArrayList<String>(Game.APPSIZE.height / VERT_TEXT_INCR);
         clientNames = new ArrayList<String>(Game.APPSIZE.height / VERT_TEXT_INCR);
+        renderer = new ActorRenderer();
         setPreferredSize(Game.APPSIZE);
         setMinimumSize(Game.APPSIZE);
         setMaximumSize(Game.APPSIZE);
@@ -88,14 +91,15 @@ class Display extends Canvas {
         synchronized (this) {
             // Render objects
             for (Actor actor : actors) {
-                actor.draw(offgraphics);
+                renderer.draw(offgraphics, actor);
             }
 
 
             offgraphics.setColor(Color.RED);
             int i = 0;
             for (i = 0; i < serverNames.size(); i++) {
-                Color color = (i == currentServer) ? Color.RED : Color.WHITE;
+                Color color = (i == currentServer) ? Color.RED
+                        : (i == selectedServer) ? Color.YELLOW : Color.WHITE;
                 offgraphics.setPaint(color);
                 offgraphics.drawString(serverNames.get(i), Game.APPSIZE.width - 100, 20 * i + 10);
             }
@@ -118,19 +122,19 @@ class Display extends Canvas {
      * @param current The server to highlight as being the current server
      * @param selected The server to highlight as being the next hyperspace target
      */
-    synchronized void setServerNames(Collection<String> servers, int current) {
+    synchronized void setServerNames(Collection<String> servers, int current, int selected) {
         currentServer = current;
+        selectedServer = selected;
         serverNames.clear();
         serverNames.addAll(servers);
     }
 
     /**
-     * Empties the given collection of names into this object's own container for thread safety
+     * Copies the given collection of names into this object's own container for thread safety
      * @param clientNames The list of strings to print as clients connected to the current server
      */
     synchronized void setClientNames(Collection<String> clientNames) {
         this.clientNames.clear();
         this.clientNames.addAll(clientNames);
-        clientNames.clear();
     }
 }
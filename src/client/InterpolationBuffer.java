@@ -0,0 +1,224 @@
+package client;
+
+import common.Actor;
+import common.Game;
+import common.Snapshot;
+
+/**
+ * An InterpolationBuffer keeps the last few snapshots received along with the
+ * time each arrived, and produces the state of the game a short delay behind
+ * the newest one by interpolating between the two snapshots either side.
+ * Rendering behind the server means there is nearly always a later snapshot
+ * to move towards, so actors move smoothly at any frame rate.
+ *
+ * The delay is one tick plus the spread in how late recent snapshots arrived
+ * compared to the earliest of them. Rather than jump when the delay changes,
+ * the game is shown up to a tenth faster or slower than real time until it
+ * is back on target, and it never runs backwards. If snapshots stop
+ * arriving the newest one is held rather than extrapolated. Positions are
+ * interpolated the short way around the edges of the space, and headings the
+ * short way around the circle.
+ * @author Simon, Daniel
+ */
+class InterpolationBuffer {
+
+    private static final int CAPACITY = 16;
+    private static final double MAX_DELAY = (CAPACITY - 2) * Game.GAME_PERIOD;
+    private static final int TIMINGS = 64;             // Arrivals the jitter is measured over
+    private static final double MAX_SKEW = 0.1;        // Most the shown game runs fast or slow
+    private static final double MAX_ERROR = 4;         // Ticks off target before jumping there
+    // Fields of the buffer used by Actor.toStream
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int HEADING = 3;
+    private final Snapshot[] snapshots;
+    private final double[] transits;   // How much later than its tick's time each arrived
+    private int newest = -1;
+    private int stored;
+    private int timed;
+    private double base;               // The least transit measured
+    private double targetDelay;
+    private double renderTick;
+    private long lastFrame;
+    private int count;
+    private int[] ids;
+    private int[] types;
+    private double[] states;
+    private final double[] from;
+    private final double[] to;
+
+    /**
+     * Creates an empty buffer
+     */
+    InterpolationBuffer() {
+        snapshots = new Snapshot[CAPACITY];
+        transits = new double[TIMINGS];
+        for (int i = 0; i < CAPACITY; i++) {
+            snapshots[i] = new Snapshot();
+        }
+        ids = new int[Game.POPCAP];
+        types = new int[Game.POPCAP];
+        states = new double[Game.POPCAP * Actor.NUM_ELEMENTS];
+        from = new double[Actor.NUM_ELEMENTS];
+        to = new double[Actor.NUM_ELEMENTS];
+    }
+
+    /**
+     * Forgets every snapshot, for when the client changes server
+     */
+    void clear() {
+        newest = -1;
+        stored = 0;
+        timed = 0;
+        count = 0;
+    }
+
+    /**
+     * Copies a newly received snapshot into the buffer
+     * @param snapshot The snapshot, newer than any already added
+     * @param arrival When it arrived in milliseconds
+     */
+    void add(Snapshot snapshot, long arrival) {
+        if (stored > 0 && snapshot.getTick() <= snapshots[newest].getTick()) {
+            // The server was rejoined and started again from a keyframe
+            clear();
+        }
+        newest = (newest + 1) % CAPACITY;
+        snapshots[newest].set(snapshot);
+        stored = Math.min(stored + 1, CAPACITY);
+        transits[timed % TIMINGS] = arrival - (double) snapshot.getTick() * Game.GAME_PERIOD;
+        timed++;
+
+        base = Double.MAX_VALUE;
+        double latest = -Double.MAX_VALUE;
+        for (int i = 0; i < Math.min(timed, TIMINGS); i++) {
+            base = Math.min(base, transits[i]);
+            latest = Math.max(latest, transits[i]);
+        }
+        targetDelay = Math.min(Game.GAME_PERIOD + latest - base, MAX_DELAY);
+        if (timed == 1) {
+            renderTick = snapshot.getTick() - 1;
+            lastFrame = arrival;
+        }
+    }
+
+    /**
+     * Interpolates the state of the game to show at the given time, which
+     * is then read with getID, getType and getState
+     * @param now The current time in milliseconds
+     * @return The number of actors to show
+     */
+    int interpolate(long now) {
+        if (stored == 0) {
+            return 0;
+        }
+        int oldest = (newest - stored + 1 + CAPACITY) % CAPACITY;
+        double elapsed = (double) (now - lastFrame) / Game.GAME_PERIOD;
+        double error = (now - base - targetDelay) / Game.GAME_PERIOD - (renderTick + elapsed);
+        lastFrame = now;
+        double tick = renderTick + elapsed;
+        if (Math.abs(error) > MAX_ERROR) {
+            tick += error;
+        } else {
+            tick += Math.max(-MAX_SKEW * elapsed, Math.min(error, MAX_SKEW * elapsed));
+        }
+        tick = Math.max(tick, renderTick);
+        tick = Math.max(tick, snapshots[oldest].getTick());
+        tick = Math.min(tick, snapshots[newest].getTick());
+        renderTick = tick;
+
+        // Find the snapshots either side of the tick
+        int a = newest;
+        while (a != oldest && snapshots[a].getTick() > tick) {
+            a = (a - 1 + CAPACITY) % CAPACITY;
+        }
+        Snapshot before = snapshots[a];
+        if (a == newest) {
+            load(before, null, 0);
+        } else {
+            Snapshot after = snapshots[(a + 1) % CAPACITY];
+            load(before, after, (tick - before.getTick()) / (after.getTick() - before.getTick()));
+        }
+        return count;
+    }
+
+    /**
+     * @param index The actor's index, from 0 to the count interpolate returned
+     * @return The actor's unique identifier
+     */
+    int getID(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @param index The actor's index, from 0 to the count interpolate returned
+     * @return The ordinal value of the actor's ActorType
+     */
+    int getType(int index) {
+        return types[index];
+    }
+
+    /**
+     * Copies an actor's interpolated state in the form used by Actor.updateFromStream
+     * @param index The actor's index, from 0 to the count interpolate returned
+     * @param buffer The buffer to fill, Actor.NUM_ELEMENTS long
+     */
+    void getState(int index, double[] buffer) {
+        System.arraycopy(states, index * Actor.NUM_ELEMENTS, buffer, 0, Actor.NUM_ELEMENTS);
+    }
+
+    /**
+     * Fills the output with every actor in one snapshot, moved the given
+     * fraction of the way towards where it is in the next. Actors which
+     * are only in the next snapshot have not appeared yet, and actors which
+     * are not in it stay where they were.
+     */
+    private void load(Snapshot before, Snapshot after, double fraction) {
+        if (states.length < before.size() * Actor.NUM_ELEMENTS) {
+            ids = new int[2 * before.size()];
+            types = new int[2 * before.size()];
+            states = new double[2 * before.size() * Actor.NUM_ELEMENTS];
+        }
+        count = before.size();
+        int b = 0;
+        int afterCount = after == null ? 0 : after.size();
+        for (int i = 0; i < count; i++) {
+            int id = before.getID(i);
+            ids[i] = id;
+            types[i] = before.getType(i);
+            before.getState(i, from);
+            // Both snapshots are sorted by ID
+            while (b < afterCount && after.getID(b) < id) {
+                b++;
+            }
+            if (b < afterCount && after.getID(b) == id) {
+                after.getState(b, to);
+                from[X] = lerpWrapped(from[X], to[X], fraction, Game.APPSIZE.getWidth());
+                from[Y] = lerpWrapped(from[Y], to[Y], fraction, Game.APPSIZE.getHeight());
+                from[HEADING] = Actor.angleWraparound(
+                        from[HEADING] + fraction * Actor.angleWraparound(to[HEADING] - from[HEADING]));
+            }
+            System.arraycopy(from, 0, states, i * Actor.NUM_ELEMENTS, Actor.NUM_ELEMENTS);
+        }
+    }
+
+    /**
+     * Interpolates along the shorter way between two coordinates in a space
+     * which wraps around
+     */
+    private static double lerpWrapped(double from, double to, double fraction, double size) {
+        double difference = to - from;
+        if (difference > size / 2) {
+            difference -= size;
+        } else if (difference < -size / 2) {
+            difference += size;
+        }
+        double value = from + fraction * difference;
+        if (value < 0) {
+            value += size;
+        } else if (value >= size) {
+            value -= size;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,233 @@
+package client;
+
+import common.Actor;
+import common.Actor.ActorType;
+import common.Command;
+import common.Game;
+import common.Snapshot;
+import common.Spacecraft;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import javax.vecmath.Vector2d;
+
+/**
+ * A Prediction moves the player's own spacecraft as soon as a key is
+ * pressed, instead of a round trip later when the server's snapshot shows it.
+ * Each input sent is remembered and applied to a local copy of the
+ * spacecraft, one tick each. When a snapshot arrives the copy is reset to
+ * the server's state and the inputs the server had not yet applied are
+ * replayed on top of it. Whatever the server did differently (gravity is not
+ * predicted) shows up as a jump between the old prediction and the new one,
+ * which is spread over a few frames rather than shown at once.
+ * @author Simon, Daniel
+ */
+class Prediction {
+
+    private static final int INPUTS = 64;                // Inputs remembered for replay
+    private static final double SMOOTHING_TIME = 100;    // Milliseconds for a correction to fade to a third
+    private static final double MAX_CORRECTION = 50;     // Corrections further than this are shown at once
+    private final int id;
+    private final int[] sequences;
+    private final List<EnumSet<Command>> inputs;
+    private int latest;            // Sequence number of the latest input
+    private Spacecraft spacecraft; // null if the player has no spacecraft
+    private final double[] state;  // The server's state of the spacecraft
+    private final Vector2d before; // Where the latest input found the spacecraft
+    private double headingBefore;
+    private long lastInputTime;
+    private long lastCorrectionTime;
+    private double errorX;
+    private double errorY;
+    private double errorHeading;
+
+    /**
+     * Creates a prediction with no spacecraft
+     * @param id The player's spacecraft's identifier
+     */
+    Prediction(int id) {
+        this.id = id;
+        sequences = new int[INPUTS];
+        inputs = new ArrayList<EnumSet<Command>>(INPUTS);
+        for (int i = 0; i < INPUTS; i++) {
+            inputs.add(EnumSet.noneOf(Command.class));
+        }
+        state = new double[Actor.NUM_ELEMENTS];
+        before = new Vector2d();
+    }
+
+    /**
+     * Forgets the spacecraft and every input, for when the client changes server
+     */
+    void clear() {
+        spacecraft = null;
+        latest = 0;
+        errorX = 0;
+        errorY = 0;
+        errorHeading = 0;
+    }
+
+    /**
+     * Records an input which has just been sent and applies it to the prediction
+     * @param sequence The sequence number it was sent with
+     * @param commands The commands it was made up of
+     * @param now The time it was sent in milliseconds
+     */
+    void record(int sequence, EnumSet<Command> commands, long now) {
+        latest = sequence;
+        sequences[sequence % INPUTS] = sequence;
+        EnumSet<Command> input = inputs.get(sequence % INPUTS);
+        input.clear();
+        input.addAll(commands);
+        if (spacecraft != null) {
+            step(input);
+        }
+        lastInputTime = now;
+    }
+
+    /**
+     * Moves the prediction to the server's latest state, then replays every
+     * input the server had not applied
+     * @param snapshot The latest snapshot
+     * @param appliedInput The latest input applied in it
+     * @param velocity The velocity of the spacecraft in it
+     * @param now The current time in milliseconds
+     */
+    void reconcile(Snapshot snapshot, int appliedInput, Vector2d velocity, long now) {
+        int index = find(snapshot);
+        if (index < 0 || snapshot.getType(index) != ActorType.WEDGE.ordinal()) {
+            spacecraft = null;
+            return;
+        }
+        boolean predicted = spacecraft != null;
+        double oldX = 0;
+        double oldY = 0;
+        double oldHeading = 0;
+        if (predicted) {
+            getState(now, state);
+            oldX = state[1];
+            oldY = state[2];
+            oldHeading = state[3];
+        }
+
+        snapshot.getState(index, state);
+        if (spacecraft == null) {
+            spacecraft = (Spacecraft) Actor.fromBuffer(ActorType.WEDGE, id, state);
+        } else {
+            spacecraft.updateFromStream(state);
+        }
+        spacecraft.setVelocity(velocity);
+        before.set(spacecraft.getX(), spacecraft.getY());
+        headingBefore = spacecraft.getHeading();
+        // Inputs too old to still be remembered are lost, but there should be
+        // no more than a round trip's worth waiting
+        for (int sequence = Math.max(appliedInput + 1, latest - INPUTS + 1); sequence <= latest; sequence++) {
+            if (sequences[sequence % INPUTS] == sequence) {
+                step(inputs.get(sequence % INPUTS));
+            }
+        }
+
+        // Whatever the prediction now shows differently fades out
+        errorX = 0;
+        errorY = 0;
+        errorHeading = 0;
+        if (predicted) {
+            getState(now, state);
+            errorX = wrappedDifference(oldX, state[1], Game.APPSIZE.getWidth());
+            errorY = wrappedDifference(oldY, state[2], Game.APPSIZE.getHeight());
+            errorHeading = Actor.angleWraparound(oldHeading - state[3]);
+            if (Math.abs(errorX) + Math.abs(errorY) > MAX_CORRECTION) {
+                errorX = 0;
+                errorY = 0;
+                errorHeading = 0;
+            }
+        }
+        lastCorrectionTime = now;
+    }
+
+    /**
+     * Fills a buffer with the predicted state of the spacecraft, moved on
+     * from where the latest input found it as the tick it will be applied in
+     * goes by, plus what remains of any correction
+     * @param now The current time in milliseconds
+     * @param buffer The buffer to fill in the form used by Actor.updateFromStream
+     * @return false if there is no spacecraft to predict
+     */
+    boolean getState(long now, double[] buffer) {
+        if (spacecraft == null) {
+            return false;
+        }
+        double fraction = Math.min(1, (double) (now - lastInputTime) / Game.GAME_PERIOD);
+        double fade = Math.exp(-(now - lastCorrectionTime) / SMOOTHING_TIME);
+        spacecraft.toStream(buffer);
+        buffer[1] = wrap(before.x + fraction * wrappedDifference(buffer[1], before.x, Game.APPSIZE.getWidth())
+                + fade * errorX, Game.APPSIZE.getWidth());
+        buffer[2] = wrap(before.y + fraction * wrappedDifference(buffer[2], before.y, Game.APPSIZE.getHeight())
+                + fade * errorY, Game.APPSIZE.getHeight());
+        buffer[3] = Actor.angleWraparound(headingBefore
+                + fraction * Actor.angleWraparound(buffer[3] - headingBefore) + fade * errorHeading);
+        return true;
+    }
+
+    /**
+     * Applies one input and moves the spacecraft on by a tick, as the server would
+     */
+    private void step(EnumSet<Command> input) {
+        spacecraft.getPosition(before);
+        headingBefore = spacecraft.getHeading();
+        for (Command command : input) {
+            switch (command) {
+                case FORWARD:
+                case TURN_CW:
+                case TURN_CCW:
+                    spacecraft.steer(command);
+                    break;
+                default:
+                    // Nothing else moves the spacecraft
+            }
+        }
+        spacecraft.move();
+    }
+
+    /**
+     * @return The index of the spacecraft in a snapshot, or -1 if it is not there
+     */
+    private int find(Snapshot snapshot) {
+        int low = 0;
+        int high = snapshot.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleID = snapshot.getID(middle);
+            if (middleID < id) {
+                low = middle + 1;
+            } else if (middleID > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return to - from, the shorter way around a space which wraps
+     */
+    private static double wrappedDifference(double to, double from, double size) {
+        double difference = to - from;
+        if (difference > size / 2) {
+            difference -= size;
+        } else if (difference < -size / 2) {
+            difference += size;
+        }
+        return difference;
+    }
+
+    private static double wrap(double value, double size) {
+        if (value < 0) {
+            return value + size;
+        } else if (value >= size) {
+            return value - size;
+        }
+        return value;
+    }
+}
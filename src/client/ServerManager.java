@@ -1,18 +1,23 @@
 package client;
 
+import common.Advertisement;
 import common.Connection;
 import common.Connection.Server;
 import common.Game;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
@@ -20,15 +25,30 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * New servers are added to the clients list and old servers are refreshed so that
  * unresponsive ones may be cleared out. Servers are collected in a copy on write
  * array to allow fast asynchronous access to array elements and the occasional
- * array mutation (when servers start or stop broadcasting).
+ * array mutation (when servers start or stop broadcasting). The client stays
+ * connected to every server it finds. One of them other than the current is
+ * chosen in advance as the next hyperspace target and asked to be watched,
+ * so its game is already known by the time the client jumps there.
+ * Servers are indexed by the address and port they advertise, and the
+ * latest advertisement of each is kept so that the target can be chosen by
+ * how much room each has left: at random, but favouring servers with few
+ * players which are far from using up their tick.
  * @author Simon, Daniel
  */
 class ServerManager extends Thread {
 
     private static final String LOCAL_SERVER_NAME = "Local";
+    private static final double MIN_SPARE = 0.05;   // Of the tick, so a busy server can still be chosen
+    private static final double RECHOOSE_RATIO = 2;  // How much better another target must be to switch
     private final MulticastSocket multiSocket;
     private final List<Connection.Server> servers;
+    private final Map<InetSocketAddress, Server> serverAt;
+    private final Map<Server, Advertisement> advertisements;
+    private final Server localServer;
+    private final int localPort;
     private int current;
+    private Server next;
+    private long nextChosen;
     private final int clientID;
     private final Collection<String> names;
     private final byte[] buffer;
@@ -46,9 +66,13 @@ class ServerManager extends Thread {
         serverCounter = new HashMap<String, Integer>(Game.MAX_SERVERS, 1.0f);
         String name = getServerName(LOCAL_SERVER_NAME);
         servers = new CopyOnWriteArrayList<Server>(); // Mutations are rare, access isn't
-        servers.add(new Server(InetAddress.getLocalHost(), port, name, clientID));
+        localServer = new Server(InetAddress.getLocalHost(), port, name, clientID);
+        localPort = port;
+        servers.add(localServer);
+        serverAt = new ConcurrentHashMap<InetSocketAddress, Server>(Game.MAX_SERVERS);
+        advertisements = new ConcurrentHashMap<Server, Advertisement>(Game.MAX_SERVERS);
         multiSocket = new MulticastSocket(Game.DEFAULT_UDP_PORT);
-        multiSocket.joinGroup(InetAddress.getByName(Game.MULTICAST_GROUP));
+        multiSocket.joinGroup(new InetSocketAddress(InetAddress.getByName(Game.MULTICAST_GROUP), 0), null);
         this.clientID = clientID;
         names = new ArrayList<String>(Game.MAX_SERVERS);
         names.add(name);
@@ -57,19 +81,57 @@ class ServerManager extends Thread {
     }
 
     /**
-     * Removes the current server from the list and moves to another server
+     * Finds the snapshots for a spectator which does not join any server.
+     * Given a host:port, of a game server or a relay, it spectates there
+     * over TCP; otherwise it waits for a server on the LAN to advertise
+     * that it multicasts its snapshots, and starts listening to them.
+     * @param spectate host:port, or the TCP port of a server multicasting,
+     * or "any" for the first found multicasting
+     * @return The stream of the server's snapshots
+     * @throws IOException if the server cannot be reached, or the
+     * advertisements cannot be listened to
+     */
+    static Server findSpectatorStream(String spectate) throws IOException {
+        int colon = spectate.lastIndexOf(':');
+        if (colon >= 0) {
+            Server server = new Server(InetAddress.getByName(spectate.substring(0, colon)),
+                    Integer.parseInt(spectate.substring(colon + 1)), spectate, Game.rand.nextInt());
+            server.spectate();
+            return server;
+        }
+        MulticastSocket socket = new MulticastSocket(Game.DEFAULT_UDP_PORT);
+        try {
+            socket.joinGroup(new InetSocketAddress(InetAddress.getByName(Game.MULTICAST_GROUP), 0), null);
+            byte[] data = new byte[Game.UDP_PACKET_LENGTH];
+            DatagramPacket received = new DatagramPacket(data, data.length);
+            while (true) {
+                received.setLength(data.length);
+                socket.receive(received);
+                Advertisement advertisement = Advertisement.read(data, received.getLength());
+                if (advertisement != null && advertisement.isMulticasting()
+                        && (spectate.equals("any") || Integer.parseInt(spectate) == advertisement.getPort())) {
+                    return new Server(advertisement.getPort(), advertisement.getName() + "'s");
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Removes the current server from the list and moves to another server.
+     * Servers which cannot be joined either are removed as well, if none
+     * are left the next call to getCurrent ends the game.
      */
     void removeCurrent() {
-        boolean found = false;
-        while (!found) {
+        remove(servers.get(current));
+        current = 0;
+        while (!servers.isEmpty()) {
             try {
-                names.remove(servers.get(current).getName());
-                servers.remove(current);
-                current = 0;
                 servers.get(current).join();
-                found = true;
+                return;
             } catch (IOException e) {
-                continue;
+                remove(servers.get(current));
             }
         }
     }
@@ -89,6 +151,95 @@ class ServerManager extends Thread {
         return current;
     }
 
+    /**
+     * Chooses the next hyperspace target if there is none, or if another
+     * server has become much the better choice, and asks to watch it
+     * @return The server a hyperspace jump would go to, null if there is
+     * only the current one
+     */
+    Server getNext() {
+        if (servers.size() <= 1) {
+            next = null;
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (next != null && now - nextChosen > Game.BROADCAST_PERIOD) {
+            nextChosen = now;
+            double best = 0;
+            for (Server server : servers) {
+                if (server != servers.get(current)) {
+                    best = Math.max(best, preference(server));
+                }
+            }
+            if (preference(next) * RECHOOSE_RATIO < best) {
+                // Stops the keyframes, the client is not in its game
+                next.leave();
+                next = null;
+            }
+        }
+        while (next == null || !servers.contains(next) || next == servers.get(current)) {
+            next = choose();
+            nextChosen = now;
+            try {
+                next.watch();
+            } catch (IOException e) {
+                remove(next);
+                next = null;
+                if (servers.size() <= 1) {
+                    return null;
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Picks a server other than the current one at random, each as likely
+     * as its preference
+     */
+    private Server choose() {
+        Server currentServer = servers.get(current);
+        double total = 0;
+        for (Server server : servers) {
+            if (server != currentServer) {
+                total += preference(server);
+            }
+        }
+        double pick = Game.rand.nextDouble() * total;
+        Server chosen = null;
+        for (Server server : servers) {
+            if (server != currentServer) {
+                chosen = server;
+                pick -= preference(server);
+                if (pick < 0) {
+                    break;
+                }
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * @return How much a server is wanted as a hyperspace target, the
+     * spare fraction of its tick shared between its players and the client
+     */
+    private double preference(Server server) {
+        Advertisement advertisement = advertisements.get(server);
+        if (advertisement == null) {
+            // Not heard from yet, so as good as an empty server
+            return 1;
+        }
+        return Math.max(MIN_SPARE, 1 - advertisement.getLoad()) / (1 + advertisement.getPlayers());
+    }
+
+    /**
+     * for use with getNames
+     * @return The index of the next hyperspace target, -1 if there is none
+     */
+    int getNextIndex() {
+        return next == null ? -1 : servers.indexOf(next);
+    }
+
     /**
      * Only call this function once per loop, save the result
      * @return The server to use for one game loop
@@ -101,8 +252,7 @@ class ServerManager extends Thread {
 
         for (Connection.Server server : servers) {
             if (!server.isAlive()) {
-                servers.remove(server);
-                names.remove(server.getName());
+                remove(server);
             }
         }
         if (current >= servers.size()) {
@@ -112,42 +262,60 @@ class ServerManager extends Thread {
     }
 
     /**
-     * Leaves the current server and joins the next selected one.
+     * Leaves the current server and joins the next selected one, taking
+     * the spacecraft along: the server left hands it to the one joined.
      * As the only connection reliant method that does not throw
      * its IOExceptions up the call chain, this method must take
-     * care of server failure itself and repeatedly join servers
-     * until one actually works.
+     * care of server failure itself. If the target cannot be joined
+     * it is removed and the client goes back to where it was.
+     * @return true if the client left the server it was on
      */
     boolean hyper() {
-        if (servers.size() <= 1) {
+        Server target = getNext();
+        if (target == null) {
             return false;
+        }
+        Server from = servers.get(current);
+        InetSocketAddress destination = advertisedAddress(target);
+        if (destination == null) {
+            // Not heard from yet, so there is nowhere to hand the spacecraft to
+            from.leave();
         } else {
-            servers.get(current).leave();
-            int temp = current;
-            do {
-                current = Game.rand.nextInt(servers.size());
-            } while (current == temp);
-
+            from.migrate(destination);
+        }
+        next = null;
+        try {
+            if (destination == null) {
+                target.join();
+            } else {
+                target.arrive();
+            }
+            current = servers.indexOf(target);
+        } catch (IOException e) {
+            // The client attempted to join a server that disconnected very recently
+            System.err.println("Couldn't hyper to new server");
+            remove(target);
+            current = servers.indexOf(from);
             try {
-                servers.get(current).join();
-            } catch (IOException e) {
-                System.err.println("Couldn't hyper to new server");
-                // If this happens the client has attempted to
-                // join a server that disconnected very recently
-                current = 0;
-                while (true) {
-                    try {
-                        servers.remove(current);
-                        servers.get(0).join();
-                        break;
-                    } catch (IOException e2) {
-                        System.err.println("failed to join server");
-                        continue;
-                    }
-                }
+                from.join();
+            } catch (IOException e2) {
+                removeCurrent();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The address a server advertised itself from, which other
+     * servers know it by, or null if it has not been heard from
+     */
+    private InetSocketAddress advertisedAddress(Server server) {
+        for (Map.Entry<InetSocketAddress, Server> entry : serverAt.entrySet()) {
+            if (entry.getValue() == server) {
+                return entry.getKey();
             }
-            return true;
         }
+        return null;
     }
 
     /**
@@ -155,59 +323,43 @@ class ServerManager extends Thread {
      */
     @Override
     public void run() {
-        int port;
-        boolean found;
-        String name;
-        String[] data;
         try {
             while (true) {
-                found = false;
-
                 // Block until a datagram is received
+                packet.setLength(buffer.length);
                 multiSocket.receive(packet);
 
-                // Decode the datagram
-                try {
-                    data = new String(packet.getData()).split(" ");
-                    port = Integer.valueOf(data[0]);
-                } catch (NumberFormatException e) {
+                Advertisement advertisement = Advertisement.read(buffer, packet.getLength());
+                if (advertisement == null) {
                     // Karl is spamming me again
                     System.out.println("Invalid datagram received");
                     continue;
                 }
+                InetAddress host = packet.getAddress();
+                InetSocketAddress address = new InetSocketAddress(host, advertisement.getPort());
+                Server server = serverAt.get(address);
 
-                // Search for matching server and refresh its timeout counter
-                // if found
-                for (Server server : servers) {
-                    if (server.is(packet.getAddress(), port)) {
-                        server.heartbeat();
-                        found = true;
-                        break;
-                    }
-                }
-
-                // If it's a new server then add it to the pool
-                if (!found) {
-                    name = getServerName(
-                            packet.getAddress().getHostAddress().equals(
-                            InetAddress.getLocalHost().getHostAddress())
-                            ? LOCAL_SERVER_NAME
-                            : data[1].trim() + "'s");
-                    if (servers.size() < Game.MAX_SERVERS) {
-                        servers.add(new Server(
-                                packet.getAddress(),
-                                port,
-                                name,
-                                clientID));
+                // If it's a new server then add it to the pool, unless it is
+                // the local one, which was connected to by another address
+                if (server == null) {
+                    boolean local = isLocal(host);
+                    if (local && advertisement.getPort() == localPort && servers.contains(localServer)
+                            && !serverAt.containsValue(localServer)) {
+                        server = localServer;
+                    } else if (servers.size() < Game.MAX_SERVERS) {
+                        String name = getServerName(local ? LOCAL_SERVER_NAME : advertisement.getName() + "'s");
+                        server = new Server(host, advertisement.getPort(), name, clientID);
+                        servers.add(server);
                         names.add(name);
+                    } else {
+                        continue;
                     }
+                    serverAt.put(address, server);
                 }
 
-                // Clear the buffer
-                for (int i = 0; i < buffer.length; i++) {
-                    buffer[i] = 0;
-
-                }
+                // Refresh its timeout counter and how loaded it is
+                server.heartbeat();
+                advertisements.put(server, advertisement);
             }
 
         } catch (IOException e) {
@@ -216,6 +368,35 @@ class ServerManager extends Thread {
         }
     }
 
+    /**
+     * @return true if the address is one of this machine's own
+     */
+    private static boolean isLocal(InetAddress address) {
+        try {
+            return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Forgets a server, keeping the current index on the same server if it
+     * is still there
+     */
+    private void remove(Server server) {
+        int index = servers.indexOf(server);
+        if (index < 0) {
+            return;
+        }
+        servers.remove(index);
+        names.remove(server.getName());
+        serverAt.values().remove(server);
+        advertisements.remove(server);
+        if (index < current) {
+            current--;
+        }
+    }
+
     /**
      * @param address The server's address
      * @return A unique name for the server
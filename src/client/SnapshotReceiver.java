@@ -0,0 +1,196 @@
+package client;
+
+import common.Connection.Server;
+import common.Snapshot;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.vecmath.Vector2d;
+
+/**
+ * A SnapshotReceiver reads snapshots from the server the client is following
+ * on its own thread, so that drawing never waits on the network and the
+ * network is read however long drawing takes. Each snapshot is copied into a
+ * slot holding only the latest one, which the client takes when it is ready;
+ * a snapshot the client did not take in time is overwritten. The slot and
+ * the spare handed back are atomic references, so neither thread ever locks
+ * and, once a few have been made, no more objects are allocated.
+ *
+ * The receiver can also watch the server the client would hyperspace to,
+ * which sends an occasional keyframe. Whatever is already waiting from it is
+ * read on every pass and the latest kept in a slot of its own, so the
+ * destination can be drawn as soon as the client arrives rather than once
+ * its first snapshot there has come.
+ * @author Simon, Daniel
+ */
+class SnapshotReceiver extends Thread {
+
+    private static final int AWAIT_TIME = 50;         // Milliseconds between checks for a new server
+    private static final long SERVER_TIMEOUT = 1000;  // Give up on a server this long without a snapshot
+    private final AtomicReference<Received> latest;
+    private final AtomicReference<Received> spare;
+    private final AtomicReference<Received> prefetched;
+    private volatile Server server;
+    private volatile Server failed;
+    private volatile Server watched;
+
+    /**
+     * A snapshot along with everything else that came with it
+     */
+    static class Received {
+
+        final Snapshot snapshot = new Snapshot();
+        List<String> names;   // Replaced, never changed, when the roster changes
+        final Vector2d velocity = new Vector2d();
+        Server server;
+        long arrival;
+        int appliedInput;
+    }
+
+    /**
+     * Creates a receiver following no server
+     */
+    SnapshotReceiver() {
+        super("Snapshot receiver");
+        setDaemon(true);
+        latest = new AtomicReference<Received>();
+        spare = new AtomicReference<Received>();
+        prefetched = new AtomicReference<Received>();
+    }
+
+    /**
+     * Starts reading from a server instead of the one before, which must
+     * already have been joined
+     * @param server The server to read snapshots from
+     */
+    void follow(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Reads whatever keyframes a server sends while the client is not in
+     * its game, in place of the server watched before
+     * @param server The server, which must have been asked to be watched,
+     * or null to watch none
+     */
+    void watch(Server server) {
+        watched = server;
+    }
+
+    /**
+     * @return The latest snapshot received since the last call, or null if
+     * there is none; hand it back with release once finished with
+     */
+    Received take() {
+        return latest.getAndSet(null);
+    }
+
+    /**
+     * @param server The server just joined
+     * @return The latest snapshot received from the server while it was
+     * watched, or null if there is none; hand it back with release once
+     * finished with
+     */
+    Received takePrefetched(Server server) {
+        Received received = prefetched.getAndSet(null);
+        if (received != null && (received.server != server || received.snapshot.getTick() < 0)) {
+            release(received);
+            return null;
+        }
+        return received;
+    }
+
+    /**
+     * Gives a snapshot taken back to be filled again
+     * @param received The snapshot, not to be used again
+     */
+    void release(Received received) {
+        spare.set(received);
+    }
+
+    /**
+     * @param server A server this receiver has followed
+     * @return true if reading from the server failed or it stopped sending
+     */
+    boolean hasFailed(Server server) {
+        return failed == server;
+    }
+
+    /**
+     * Thread entry point
+     */
+    @Override
+    public void run() {
+        Received filling = new Received();
+        Received prefetching = new Received();
+        Server following = null;
+        Server lost = null;
+        long lastReceived = 0;
+        while (true) {
+            Server current = server;
+            if (current != following) {
+                following = current;
+                lastReceived = System.currentTimeMillis();
+            }
+            Server target = watched;
+            if (target != null && target != current && target != lost) {
+                try {
+                    if (target.poll()) {
+                        fill(prefetching, target, System.currentTimeMillis());
+                        prefetching = swap(prefetched, prefetching);
+                    }
+                } catch (IOException e) {
+                    // The client finds out if it tries to join
+                    lost = target;
+                }
+            }
+            if (current == null || current == failed) {
+                sleepBriefly();
+                continue;
+            }
+            try {
+                if (current.await(AWAIT_TIME) && current.poll()) {
+                    lastReceived = System.currentTimeMillis();
+                    fill(filling, current, lastReceived);
+                    filling = swap(latest, filling);
+                } else if (System.currentTimeMillis() - lastReceived > SERVER_TIMEOUT) {
+                    failed = current;
+                }
+            } catch (IOException e) {
+                failed = current;
+            }
+        }
+    }
+
+    /**
+     * Copies the snapshot a server last applied
+     */
+    private static void fill(Received received, Server server, long arrival) {
+        received.server = server;
+        received.arrival = arrival;
+        received.snapshot.set(server.getSnapshot());
+        received.appliedInput = server.getAppliedInput();
+        server.getVelocity(received.velocity);
+        received.names = server.getRoster().getNames();
+    }
+
+    /**
+     * Puts a snapshot in a slot
+     * @return Something to fill next
+     */
+    private Received swap(AtomicReference<Received> slot, Received received) {
+        Received next = slot.getAndSet(received);
+        if (next == null) {
+            next = spare.getAndSet(null);
+        }
+        return next == null ? new Received() : next;
+    }
+
+    private void sleepBriefly() {
+        try {
+            Thread.sleep(AWAIT_TIME);
+        } catch (InterruptedException e) {
+            // Check again
+        }
+    }
+}
@@ -1,17 +1,13 @@
 package common;
 
-import java.awt.Color;
-import java.awt.image.BufferedImage;
-import java.awt.geom.AffineTransform;
 import java.awt.Dimension;
-import java.awt.Graphics2D;
 import javax.vecmath.Vector2d;
-import java.awt.geom.Rectangle2D;
 
 /**
  * General class of all objects in the Spacewar game. Every object has
  * a position, velocity, heading angle, and a "gravity constant" that
- * acts as a proxy for mass.
+ * acts as a proxy for mass. Actors carry no images, drawing them is
+ * left to the client.
  *
  * @author Simon, Daniel, AIM
  */
@@ -24,22 +20,22 @@ public abstract class Actor {
     private static final double DEFAULT_HEADING = Math.toRadians(1.0);
     private static final double DEFAULT_G = 1.0;
     private static final double MAX_VELOCITY = 15;
-    // Image representing the object on screen, and a graphics context
-    // to draw to the image.
-    private BufferedImage sprite;
-    protected Graphics2D spriteGraphics;
     // Size of the object in pixels
     protected Dimension size;
     // Current position and velocity in the game-space
     private ToroidalCoordinate2D position;
-    protected Vector2d velocity;
+    private Vector2d velocity;
     // Current heading angle in radians
-    protected double angle = DEFAULT_HEADING;
+    private double angle = DEFAULT_HEADING;
     // "Gravity constant" of this object. Roughly analogous to GM, where
     // G is the newtonian gravity constant and M is the object mass.
     private double gravityConstant = DEFAULT_G;
     // True if the object is still active
     private boolean alive = true;
+    // The store holding this actor's state instead of the fields above,
+    // null unless the actor is in the server's simulation
+    private ActorStore store;
+    private int slot;
     protected double colour;
     protected int actorID;
     private static int idCounter = 1;
@@ -51,9 +47,6 @@ public abstract class Actor {
      */
     private Actor(int actorID) {
         this.actorID = actorID;
-        sprite = new BufferedImage(SPRITE_DIM, SPRITE_DIM,
-                BufferedImage.TYPE_INT_ARGB);
-        spriteGraphics = sprite.createGraphics();
         size = new Dimension(SPRITE_DIM, SPRITE_DIM);
     }
 
@@ -109,7 +102,7 @@ public abstract class Actor {
      */
     protected Actor(int actorID, double[] buffer) {
         this(actorID);
-        spriteGraphics.setColor(Color.getHSBColor((float) buffer[0], 0.5f, 0.5f));
+        colour = buffer[0];
         position = new ToroidalCoordinate2D(new Vector2d(buffer[1], buffer[2]));
 //      velocity = new Vector2d(buffer[3], buffer[4]);
         angle = buffer[3];
@@ -132,9 +125,9 @@ public abstract class Actor {
     public void toStream(double[] buffer) {
         int i = 0;
         buffer[i++] = colour;
-        buffer[i++] = position.getX();
-        buffer[i++] = position.getY();
-        buffer[i++] = angle;
+        buffer[i++] = getX();
+        buffer[i++] = getY();
+        buffer[i++] = getHeading();
     }
 
     /**
@@ -143,25 +136,30 @@ public abstract class Actor {
     public abstract int getActorType();
 
     /**
-     * Renders the object sprite
-     * @param graphics the Graphics2D object to draw to
+     * @return The hue used to tell apart actors of the same type
      */
-    public void draw(Graphics2D graphics) {
-        AffineTransform trans = new AffineTransform();
+    public double getColour() {
+        return colour;
+    }
 
-        // Note ordering here: first transform you want to apply gets
-        // added last in the sequence
-        trans.translate(position.getX(), position.getY());
-        trans.rotate(angle);
-        trans.translate(-SPRITE_DIM / 2, -SPRITE_DIM / 2);  // Center the image
-        graphics.drawRenderedImage(sprite, trans);
+    /**
+     * Updates the position based on the current velocity. Actors in an
+     * ActorStore are moved by the store instead.
+     */
+    public void move() {
+        if (store == null) {
+            position.translate(velocity); // Assumes uniform timestep
+        } else {
+            store.integrate(slot);
+        }
     }
 
     /**
-     * Updates the position based on the current velocity.
+     * Carries out any behaviour, other than movement, that happens once
+     * per time-step.
      */
     public void stepTime() {
-        position.translate(velocity); // Assumes uniform timestep
+        // Most actors just drift
     }
 
     /**
@@ -169,8 +167,22 @@ public abstract class Actor {
      * @param deltaV the change in velocity
      */
     public void accelerate(Vector2d deltaV) {
-        velocity.add(deltaV);
-        velocity.clamp(-getMaxVel(), getMaxVel());
+        accelerate(deltaV.x, deltaV.y);
+    }
+
+    /**
+     * Modifies the object velocity by some vector amount
+     * @param deltaVx the change in x velocity
+     * @param deltaVy the change in y velocity
+     */
+    public void accelerate(double deltaVx, double deltaVy) {
+        if (store == null) {
+            velocity.x += deltaVx;
+            velocity.y += deltaVy;
+            velocity.clamp(-getMaxVel(), getMaxVel());
+        } else {
+            store.accelerate(slot, deltaVx, deltaVy);
+        }
     }
 
     /**
@@ -186,8 +198,14 @@ public abstract class Actor {
      * @param magnitude size of the change in velocity
      */
     public void accelerate(double magnitude) {
-        velocity.add(new Vector2d(magnitude * Math.cos(angle),
-                magnitude * Math.sin(angle)));
+        double heading = getHeading();
+        if (store == null) {
+            velocity.x += magnitude * Math.cos(heading);
+            velocity.y += magnitude * Math.sin(heading);
+        } else {
+            store.vx[slot] += magnitude * Math.cos(heading);
+            store.vy[slot] += magnitude * Math.sin(heading);
+        }
     }
 
     /**
@@ -199,13 +217,41 @@ public abstract class Actor {
      */
     public void setPosition(Vector2d newPos) {
         position = new ToroidalCoordinate2D(newPos);
+        if (store != null) {
+            store.x[slot] = position.getX();
+            store.y[slot] = position.getY();
+        }
     }
 
     /**
      * @return the current position as a Cartesian vector relative to 0,0
      */
     public Vector2d getPosition() {
-        return new Vector2d(position.getX(), position.getY());
+        return getPosition(new Vector2d());
+    }
+
+    /**
+     * Copies the current position into an existing vector
+     * @param result the vector to fill
+     * @return result, as a Cartesian vector relative to 0,0
+     */
+    public Vector2d getPosition(Vector2d result) {
+        result.set(getX(), getY());
+        return result;
+    }
+
+    /**
+     * @return the x coordinate of the current position
+     */
+    public double getX() {
+        return store == null ? position.getX() : store.x[slot];
+    }
+
+    /**
+     * @return the y coordinate of the current position
+     */
+    public double getY() {
+        return store == null ? position.getY() : store.y[slot];
     }
 
     /**
@@ -213,14 +259,33 @@ public abstract class Actor {
      * @param newV vector specifying the new velocity
      */
     public void setVelocity(Vector2d newV) {
-        velocity = new Vector2d(newV);
+        if (store == null) {
+            velocity = new Vector2d(newV);
+        } else {
+            store.vx[slot] = newV.x;
+            store.vy[slot] = newV.y;
+        }
     }
 
     /**
      * @return the current velocity as a Cartesian vector
      */
     public Vector2d getVelocity() {
-        return new Vector2d(velocity);
+        return getVelocity(new Vector2d());
+    }
+
+    /**
+     * Copies the current velocity into an existing vector
+     * @param result the vector to fill
+     * @return result, as a Cartesian vector
+     */
+    public Vector2d getVelocity(Vector2d result) {
+        if (store == null) {
+            result.set(velocity);
+        } else {
+            result.set(store.vx[slot], store.vy[slot]);
+        }
+        return result;
     }
 
     /**
@@ -229,21 +294,25 @@ public abstract class Actor {
      * @param turnAngle change in angle, in radians
      */
     public void rotate(double turnAngle) {
-        angle = angleWraparound(angle + turnAngle);
+        if (store == null) {
+            angle = angleWraparound(angle + turnAngle);
+        } else {
+            store.angle[slot] = angleWraparound(store.angle[slot] + turnAngle);
+        }
     }
 
     /**
      * @return the current heading angle in radians
      */
     public double getHeading() {
-        return angle;
+        return store == null ? angle : store.angle[slot];
     }
 
     /**
      * @return the current gravity constant
      */
     public double getGravityConstant() {
-        return gravityConstant;
+        return store == null ? gravityConstant : store.gravity[slot];
     }
 
     /**
@@ -252,6 +321,9 @@ public abstract class Actor {
      */
     public void setGravityConstant(double G) {
         gravityConstant = G;
+        if (store != null) {
+            store.gravity[slot] = G;
+        }
     }
 
     /**
@@ -268,46 +340,47 @@ public abstract class Actor {
      */
     public void gravitate(Actor other) {
         // Find the spatial vector between this and the other object
-        Vector2d grav_vector = this.getPosition();
-        grav_vector.sub(other.getPosition());
+        double gravX = this.getX() - other.getX();
+        double gravY = this.getY() - other.getY();
 
         // Compute the acceleration magnitudes for each object as a
         // function of gravity constant (which is sort of a proxy
         // for relative mass).
-        double r2 = grav_vector.lengthSquared();
+        double r2 = gravX * gravX + gravY * gravY;
         double my_accel = -(other.getGravityConstant() / r2);
         double other_accel = this.getGravityConstant() / r2;
 
         // Convert the gravity vector into a pure direction, and then
         // scale to produce accelerations
-        grav_vector.normalize();
-
-        Vector2d myAccelVec = new Vector2d(grav_vector);
-        myAccelVec.scale(my_accel);
-        this.accelerate(myAccelVec);
+        double norm = 1.0 / Math.sqrt(gravX * gravX + gravY * gravY);
+        gravX *= norm;
+        gravY *= norm;
 
-        Vector2d otherAccelVec = new Vector2d(grav_vector);
-        otherAccelVec.scale(other_accel);
-        other.accelerate(otherAccelVec);
+        if (this.isAttractedBy(other)) {
+            this.accelerate(gravX * my_accel, gravY * my_accel);
+        }
+        if (other.isAttractedBy(this)) {
+            other.accelerate(gravX * other_accel, gravY * other_accel);
+        }
     }
 
     /**
-     * Checks for collision with another object
-     * @param other the other object
-     * @return true if a collision has occurred with the other object
+     * @param other another object
+     * @return true if this object feels the other's gravity
      */
-    public boolean hasCollidedWith(Actor other) {
-        return this.getBoundingBox().intersects(other.getBoundingBox());
+    public boolean isAttractedBy(Actor other) {
+        return true;
     }
 
     /**
-     * @return a Rectangle centred on the object position, and having a size
-     * corresponding to the object size.
+     * Checks for collision with another object. Each object's bounding box
+     * is a rectangle centred on its position with the same size as it.
+     * @param other the other object
+     * @return true if a collision has occurred with the other object
      */
-    private Rectangle2D getBoundingBox() {
-        return new Rectangle2D.Double(position.getX() - 0.5 * size.getWidth(),
-                position.getY() - 0.5 * size.getHeight(),
-                size.getWidth(), size.getHeight());
+    public boolean hasCollidedWith(Actor other) {
+        return ActorStore.overlaps(getX(), getY(), size.getWidth(), size.getHeight(),
+                other.getX(), other.getY(), other.size.getWidth(), other.size.getHeight());
     }
 
     /**
@@ -315,6 +388,9 @@ public abstract class Actor {
      */
     public void destroy() {
         alive = false;
+        if (store != null) {
+            store.alive[slot] = false;
+        }
     }
 
     /**
@@ -335,7 +411,65 @@ public abstract class Actor {
      * @return true if the object is no longer active
      */
     public boolean isDead() {
-        return !alive;
+        return store == null ? !alive : !store.alive[slot];
+    }
+
+    /**
+     * Copies this actor's state into a slot of a store, which then holds
+     * the actor's state until it is detached.
+     * @param store The store to move into
+     * @param slot The slot to occupy
+     */
+    void attach(ActorStore store, int slot) {
+        store.actors[slot] = this;
+        store.x[slot] = position.getX();
+        store.y[slot] = position.getY();
+        store.vx[slot] = velocity.x;
+        store.vy[slot] = velocity.y;
+        store.angle[slot] = angle;
+        store.gravity[slot] = gravityConstant;
+        store.maxVelocity[slot] = getMaxVel();
+        store.actorWidth[slot] = size.getWidth();
+        store.actorHeight[slot] = size.getHeight();
+        store.type[slot] = getActorType();
+        store.alive[slot] = alive;
+        this.store = store;
+        this.slot = slot;
+    }
+
+    /**
+     * Copies this actor's state back out of its store
+     */
+    void detach() {
+        position.setLocation(store.x[slot], store.y[slot]);
+        velocity.set(store.vx[slot], store.vy[slot]);
+        angle = store.angle[slot];
+        gravityConstant = store.gravity[slot];
+        alive = store.alive[slot];
+        store = null;
+    }
+
+    /**
+     * @param store A store
+     * @return true if this actor's state is held in the given store
+     */
+    boolean isIn(ActorStore store) {
+        return this.store == store;
+    }
+
+    /**
+     * @return The slot this actor occupies in its store
+     */
+    int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Records that the store has moved this actor to a different slot
+     * @param slot The new slot
+     */
+    void setSlot(int slot) {
+        this.slot = slot;
     }
 
     /**
@@ -0,0 +1,210 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * An ActorCodec decides how an actor's identifier, type and the fields of
+ * Actor.toStream are written to the wire. Each codec has a version which is
+ * sent with every frame, so the client always decodes with the codec the
+ * server encoded with. Values are quantised before they are compared or sent,
+ * so that both ends hold exactly the same snapshots.
+ * @author Simon, Daniel
+ */
+public interface ActorCodec {
+
+    /** Every codec, indexed by version */
+    ActorCodec[] VERSIONS = {new Doubles(), new Compact()};
+
+    /**
+     * @return The version sent with frames written by this codec
+     */
+    int getVersion();
+
+    /**
+     * Rounds a value to what the other end will receive
+     * @param field The field's index in Actor.toStream's buffer
+     * @param value The value of the field
+     * @return The value as it will be decoded
+     */
+    double quantise(int field, double value);
+
+    void writeID(DataOutputStream out, int id) throws IOException;
+
+    int readID(DataInputStream in) throws IOException;
+
+    void writeType(DataOutputStream out, int type) throws IOException;
+
+    int readType(DataInputStream in) throws IOException;
+
+    /**
+     * Writes a field that has already been quantised
+     * @param out The stream to write to
+     * @param field The field's index in Actor.toStream's buffer
+     * @param value The value of the field
+     * @throws IOException if the stream fails
+     */
+    void writeField(DataOutputStream out, int field, double value) throws IOException;
+
+    double readField(DataInputStream in, int field) throws IOException;
+
+    /**
+     * The original format, every value sent at full precision
+     */
+    class Doubles implements ActorCodec {
+
+        @Override
+        public int getVersion() {
+            return 0;
+        }
+
+        @Override
+        public double quantise(int field, double value) {
+            return value;
+        }
+
+        @Override
+        public void writeID(DataOutputStream out, int id) throws IOException {
+            out.writeInt(id);
+        }
+
+        @Override
+        public int readID(DataInputStream in) throws IOException {
+            return in.readInt();
+        }
+
+        @Override
+        public void writeType(DataOutputStream out, int type) throws IOException {
+            out.writeInt(type);
+        }
+
+        @Override
+        public int readType(DataInputStream in) throws IOException {
+            return in.readInt();
+        }
+
+        @Override
+        public void writeField(DataOutputStream out, int field, double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        @Override
+        public double readField(DataInputStream in, int field) throws IOException {
+            return in.readDouble();
+        }
+    }
+
+    /**
+     * A compact format. Identifiers and types are variable length integers
+     * of seven bits a byte, and every field fits in two bytes: positions are
+     * fixed point fractions of the size of the game space, the heading is a
+     * fraction of a turn and the colour (a hue from 0 to 1) is a fraction of
+     * one. The colour only changes when an actor spawns, so after a keyframe
+     * it is never sent again.
+     */
+    class Compact implements ActorCodec {
+
+        private static final int COLOUR = 0;
+        private static final int X = 1;
+        private static final int Y = 2;
+        private static final int HEADING = 3;
+        private static final int STEPS = 0xFFFF;
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public double quantise(int field, double value) {
+            return fromFixed(field, toFixed(field, value));
+        }
+
+        @Override
+        public void writeID(DataOutputStream out, int id) throws IOException {
+            // Zig-zag so that negative identifiers stay short
+            writeVarint(out, (id << 1) ^ (id >> 31));
+        }
+
+        @Override
+        public int readID(DataInputStream in) throws IOException {
+            int zigzag = readVarint(in);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        @Override
+        public void writeType(DataOutputStream out, int type) throws IOException {
+            writeVarint(out, type);
+        }
+
+        @Override
+        public int readType(DataInputStream in) throws IOException {
+            return readVarint(in);
+        }
+
+        @Override
+        public void writeField(DataOutputStream out, int field, double value) throws IOException {
+            out.writeChar(toFixed(field, value));
+        }
+
+        @Override
+        public double readField(DataInputStream in, int field) throws IOException {
+            return fromFixed(field, in.readChar());
+        }
+
+        /**
+         * @return The size of the range a field is a fraction of
+         */
+        private static double range(int field) {
+            switch (field) {
+                case X:
+                    return Game.APPSIZE.getWidth();
+                case Y:
+                    return Game.APPSIZE.getHeight();
+                case HEADING:
+                    return 2 * Math.PI;
+                case COLOUR:
+                default:
+                    return 1;
+            }
+        }
+
+        private static int toFixed(int field, double value) {
+            double fraction = value / range(field);
+            if (field == HEADING) {
+                // Headings run from -PI to PI, keep only the fraction of a turn
+                fraction -= Math.floor(fraction);
+            }
+            return (int) Math.round(Math.max(0, Math.min(1, fraction)) * STEPS);
+        }
+
+        private static double fromFixed(int field, int fixed) {
+            double value = range(field) * fixed / STEPS;
+            if (field == HEADING && value > Math.PI) {
+                value -= 2 * Math.PI;
+            }
+            return value;
+        }
+
+        private static void writeVarint(DataOutputStream out, int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        private static int readVarint(DataInputStream in) throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed variable length integer");
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package common;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * An ActorStore holds the physical state of the server's actors in parallel
+ * arrays indexed by slot, so that the simulation can step every actor in a
+ * tight loop. An actor added to the store becomes a view onto its slot, its
+ * accessors read and write the arrays, and the Actor object itself is left
+ * to provide behaviour such as damage and missile lifetimes.
+ *
+ * Slots are kept packed and in the order the actors were added. The arrays
+ * are replaced when the store grows, so fetch them again after adding actors.
+ * @author Simon, Daniel
+ */
+public class ActorStore {
+
+    private static final int MIN_CAPACITY = 16;
+    private final double width;
+    private final double height;
+    private final List<Actor> view;
+    private int count;
+    Actor[] actors;
+    double[] x;
+    double[] y;
+    double[] vx;
+    double[] vy;
+    double[] angle;
+    double[] gravity;
+    double[] maxVelocity;
+    double[] actorWidth;
+    double[] actorHeight;
+    int[] type;
+    boolean[] alive;
+
+    /**
+     * Creates an empty store covering the game space
+     * @param capacity The number of actors to make room for
+     */
+    public ActorStore(int capacity) {
+        width = Game.APPSIZE.getWidth();
+        height = Game.APPSIZE.getHeight();
+        allocate(Math.max(capacity, MIN_CAPACITY));
+        view = new AbstractList<Actor>() {
+
+            @Override
+            public Actor get(int slot) {
+                return ActorStore.this.get(slot);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    /**
+     * @return The number of actors in the store
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param slot The slot to look up
+     * @return The actor in the given slot
+     */
+    public Actor get(int slot) {
+        if (slot >= count) {
+            throw new IndexOutOfBoundsException("No actor in slot " + slot);
+        }
+        return actors[slot];
+    }
+
+    /**
+     * @return A read only list of the actors, in slot order
+     */
+    public List<Actor> asList() {
+        return view;
+    }
+
+    /**
+     * Moves an actor's state into a new slot at the end of the store
+     * @param actor The actor to add
+     */
+    public void add(Actor actor) {
+        if (count == actors.length) {
+            allocate(2 * count);
+        }
+        actor.attach(this, count++);
+    }
+
+    /**
+     * Removes an actor, handing its state back to the actor object
+     * @param actor The actor to remove, ignored if it is not in this store
+     */
+    public void remove(Actor actor) {
+        if (actor == null || !actor.isIn(this)) {
+            return;
+        }
+        int slot = actor.getSlot();
+        actor.detach();
+        for (int i = slot + 1; i < count; i++) {
+            move(i, i - 1);
+        }
+        actors[--count] = null;
+    }
+
+    /**
+     * Removes all dead actors, keeping the survivors in their original order
+     */
+    public void removeDead() {
+        int live = 0;
+        for (int i = 0; i < count; i++) {
+            if (alive[i]) {
+                if (i != live) {
+                    move(i, live);
+                }
+                live++;
+            } else {
+                actors[i].detach();
+            }
+        }
+        for (int i = live; i < count; i++) {
+            actors[i] = null;
+        }
+        count = live;
+    }
+
+    /**
+     * Moves every actor along its velocity for one time-step, wrapping
+     * around the edges of the space
+     */
+    public void integrate() {
+        integrate(0, count);
+    }
+
+    /**
+     * Moves a range of slots along their velocities for one time-step
+     * @param from The first slot to move
+     * @param to One past the last slot to move
+     */
+    public void integrate(int from, int to) {
+        for (int i = from; i < to; i++) {
+            integrate(i);
+        }
+    }
+
+    /**
+     * Moves a single slot along its velocity for one time-step
+     * @param slot The slot to move
+     */
+    void integrate(int slot) {
+        x[slot] = ToroidalCoordinate2D.wrap(x[slot] + vx[slot], width);
+        y[slot] = ToroidalCoordinate2D.wrap(y[slot] + vy[slot], height);
+    }
+
+    /**
+     * Adds to a slot's velocity and limits it to the actor's maximum
+     * @param slot The slot to accelerate
+     * @param dx The change in x velocity
+     * @param dy The change in y velocity
+     */
+    public void accelerate(int slot, double dx, double dy) {
+        vx[slot] = clamp(vx[slot] + dx, maxVelocity[slot]);
+        vy[slot] = clamp(vy[slot] + dy, maxVelocity[slot]);
+    }
+
+    /**
+     * Limits a velocity component in the same way as Tuple2d.clamp
+     * @param v The velocity component
+     * @param max The maximum absolute value
+     * @return The clamped component
+     */
+    public static double clamp(double v, double max) {
+        if (v > max) {
+            return max;
+        } else if (v < -max) {
+            return -max;
+        }
+        return v;
+    }
+
+    /**
+     * Tests whether two actors' bounding boxes, each a rectangle centred on
+     * the actor's position, intersect. This is the same test as
+     * Rectangle2D.intersects, without building rectangles.
+     * @param x The first actor's x position
+     * @param y The first actor's y position
+     * @param width The first actor's width
+     * @param height The first actor's height
+     * @param otherX The second actor's x position
+     * @param otherY The second actor's y position
+     * @param otherWidth The second actor's width
+     * @param otherHeight The second actor's height
+     * @return true if the boxes intersect
+     */
+    public static boolean overlaps(double x, double y, double width, double height,
+            double otherX, double otherY, double otherWidth, double otherHeight) {
+        if (width <= 0 || height <= 0 || otherWidth <= 0 || otherHeight <= 0) {
+            return false;
+        }
+        double x0 = x - 0.5 * width;
+        double y0 = y - 0.5 * height;
+        double x1 = otherX - 0.5 * otherWidth;
+        double y1 = otherY - 0.5 * otherHeight;
+        return x1 + otherWidth > x0 && y1 + otherHeight > y0
+                && x1 < x0 + width && y1 < y0 + height;
+    }
+
+    /**
+     * @return The x coordinate of each slot
+     */
+    public double[] positionX() {
+        return x;
+    }
+
+    /**
+     * @return The y coordinate of each slot
+     */
+    public double[] positionY() {
+        return y;
+    }
+
+    /**
+     * @return The x velocity of each slot
+     */
+    public double[] velocityX() {
+        return vx;
+    }
+
+    /**
+     * @return The y velocity of each slot
+     */
+    public double[] velocityY() {
+        return vy;
+    }
+
+    /**
+     * @return The gravity constant of each slot
+     */
+    public double[] gravityConstants() {
+        return gravity;
+    }
+
+    /**
+     * @return The maximum absolute velocity of each slot
+     */
+    public double[] maxVelocities() {
+        return maxVelocity;
+    }
+
+    /**
+     * @return The width of each slot's actor
+     */
+    public double[] widths() {
+        return actorWidth;
+    }
+
+    /**
+     * @return The height of each slot's actor
+     */
+    public double[] heights() {
+        return actorHeight;
+    }
+
+    /**
+     * @return The ActorType ordinal of each slot
+     */
+    public int[] types() {
+        return type;
+    }
+
+    /**
+     * Moves the contents of one slot into another
+     */
+    private void move(int from, int to) {
+        actors[to] = actors[from];
+        x[to] = x[from];
+        y[to] = y[from];
+        vx[to] = vx[from];
+        vy[to] = vy[from];
+        angle[to] = angle[from];
+        gravity[to] = gravity[from];
+        maxVelocity[to] = maxVelocity[from];
+        actorWidth[to] = actorWidth[from];
+        actorHeight[to] = actorHeight[from];
+        type[to] = type[from];
+        alive[to] = alive[from];
+        actors[to].setSlot(to);
+    }
+
+    /**
+     * Replaces the arrays with larger copies
+     */
+    private void allocate(int capacity) {
+        actors = grow(actors, new Actor[capacity]);
+        x = grow(x, capacity);
+        y = grow(y, capacity);
+        vx = grow(vx, capacity);
+        vy = grow(vy, capacity);
+        angle = grow(angle, capacity);
+        gravity = grow(gravity, capacity);
+        maxVelocity = grow(maxVelocity, capacity);
+        actorWidth = grow(actorWidth, capacity);
+        actorHeight = grow(actorHeight, capacity);
+        int[] newType = new int[capacity];
+        boolean[] newAlive = new boolean[capacity];
+        if (type != null) {
+            System.arraycopy(type, 0, newType, 0, count);
+            System.arraycopy(alive, 0, newAlive, 0, count);
+        }
+        type = newType;
+        alive = newAlive;
+    }
+
+    private double[] grow(double[] old, int capacity) {
+        double[] array = new double[capacity];
+        if (old != null) {
+            System.arraycopy(old, 0, array, 0, count);
+        }
+        return array;
+    }
+
+    private Actor[] grow(Actor[] old, Actor[] array) {
+        if (old != null) {
+            System.arraycopy(old, 0, array, 0, count);
+        }
+        return array;
+    }
+}
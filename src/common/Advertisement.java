@@ -0,0 +1,182 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * An Advertisement is what a server multicasts every BROADCAST_PERIOD to let
+ * clients know it is there and how busy it is. Along with the TCP port and
+ * the host's user name it carries the number of players and actors in the
+ * game and percentiles of how long the server's recent ticks took, so that
+ * clients can choose where to go by how much room a server has left, and
+ * whether the server multicasts its snapshots for spectators on the LAN.
+ *
+ * Packets are laid out as:
+ *   short MAGIC, byte VERSION
+ *   unsigned short TCP port
+ *   unsigned short players, unsigned short actors
+ *   int, int, int median, 95th and 99th percentile tick times in microseconds
+ *   byte flags, MULTICASTING if snapshots are sent to Game.SPECTATOR_GROUP
+ *   UTF host's user name, cut short to fit in UDP_PACKET_LENGTH
+ * The sender's address is the packet's own.
+ * @author Simon, Daniel
+ */
+public class Advertisement {
+
+    private static final short MAGIC = 0x5357;   // "SW"
+    private static final int VERSION = 2;
+    private static final int MAX_NAME = 16;
+    private static final int MULTICASTING = 1;
+    private final int port;
+    private final String name;
+    private final int players;
+    private final int actors;
+    private final int medianMicros;
+    private final int highMicros;
+    private final int peakMicros;
+    private final boolean multicasting;
+
+    /**
+     * Creates an advertisement
+     * @param port The port the server is listening on
+     * @param name The host's user name
+     * @param players The number of players in the game
+     * @param actors The number of actors in the game
+     * @param medianMicros The median recent tick time in microseconds
+     * @param highMicros The 95th percentile recent tick time in microseconds
+     * @param peakMicros The 99th percentile recent tick time in microseconds
+     * @param multicasting true if the server multicasts its snapshots
+     */
+    public Advertisement(int port, String name, int players, int actors,
+            int medianMicros, int highMicros, int peakMicros, boolean multicasting) {
+        this.port = port;
+        this.name = name.length() > MAX_NAME ? name.substring(0, MAX_NAME) : name;
+        this.players = players;
+        this.actors = actors;
+        this.medianMicros = medianMicros;
+        this.highMicros = highMicros;
+        this.peakMicros = peakMicros;
+        this.multicasting = multicasting;
+    }
+
+    /**
+     * Reads an advertisement from a packet's contents
+     * @param data The packet's buffer
+     * @param length The number of bytes received
+     * @return The advertisement, or null if the packet is not one this
+     * version understands
+     */
+    public static Advertisement read(byte[] data, int length) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+        try {
+            if (in.readShort() != MAGIC || in.readUnsignedByte() != VERSION) {
+                return null;
+            }
+            int port = in.readUnsignedShort();
+            int players = in.readUnsignedShort();
+            int actors = in.readUnsignedShort();
+            int medianMicros = in.readInt();
+            int highMicros = in.readInt();
+            int peakMicros = in.readInt();
+            boolean multicasting = (in.readUnsignedByte() & MULTICASTING) != 0;
+            return new Advertisement(port, in.readUTF(), players, actors,
+                    medianMicros, highMicros, peakMicros, multicasting);
+        } catch (IOException e) {
+            // Cut short, so not one of ours
+            return null;
+        }
+    }
+
+    /**
+     * @return The advertisement as the contents of a packet, no longer than
+     * UDP_PACKET_LENGTH
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Game.UDP_PACKET_LENGTH);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(port);
+            out.writeShort(Math.min(players, 0xFFFF));
+            out.writeShort(Math.min(actors, 0xFFFF));
+            out.writeInt(medianMicros);
+            out.writeInt(highMicros);
+            out.writeInt(peakMicros);
+            out.writeByte(multicasting ? MULTICASTING : 0);
+            out.writeUTF(name);
+        } catch (IOException e) {
+            // Writing to memory cannot fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return The port the server is listening on
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return The host's user name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of players in the game
+     */
+    public int getPlayers() {
+        return players;
+    }
+
+    /**
+     * @return The number of actors in the game
+     */
+    public int getActors() {
+        return actors;
+    }
+
+    /**
+     * @return The median recent tick time in microseconds
+     */
+    public int getMedianMicros() {
+        return medianMicros;
+    }
+
+    /**
+     * @return The 95th percentile recent tick time in microseconds
+     */
+    public int getHighMicros() {
+        return highMicros;
+    }
+
+    /**
+     * @return The 99th percentile recent tick time in microseconds
+     */
+    public int getPeakMicros() {
+        return peakMicros;
+    }
+
+    /**
+     * @return true if the server multicasts its snapshots to
+     * Game.SPECTATOR_GROUP, on a UDP port the same as its TCP port
+     */
+    public boolean isMulticasting() {
+        return multicasting;
+    }
+
+    /**
+     * @return The fraction of the tick period the server's slower ticks
+     * take, 1 or more if it cannot keep up
+     */
+    public double getLoad() {
+        return highMicros / (Game.GAME_PERIOD * 1000.0);
+    }
+}
@@ -1,9 +1,26 @@
 package common;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 /**
  * The set of keyboard commands a client uses.
  * The set of commands used to operate a
  * spaceship is a subset of this enum.
+ * ACK, DATAGRAMS, INPUT, COMPRESS and WATCH are not keys, they are messages
+ * a client sends to the server along with ENTRY and EXIT. ACK is followed by
+ * the tick of the latest snapshot received, DATAGRAMS by the UDP port the
+ * client would like its snapshots sent to, and INPUT by the controls held
+ * this tick and a sequence number. COMPRESS asks for snapshots to be
+ * compressed from then on, and WATCH for an occasional keyframe while the
+ * client is not in the game, until it sends ENTRY or EXIT. MIGRATE leaves
+ * the game like EXIT but has the spacecraft handed to the server whose
+ * address follows, which the client then enters with ARRIVE rather than
+ * ENTRY. HANDOFF is sent from one server to another and is followed by the
+ * spacecraft, as written by Spacecraft.writeHandoff, only once the sending
+ * server has said with PEER which port it listens on, so that it can be
+ * checked against the servers advertised. SPECTATE asks for every
+ * snapshot without a spacecraft in the game, until EXIT.
  * @author Simon, Daniel
  */
 public enum Command {
@@ -13,7 +30,27 @@ public enum Command {
     EXIT,
     FIRE,
     HYPERSPACE,
-    ENTRY;
+    ENTRY,
+    ACK,
+    DATAGRAMS,
+    INPUT,
+    COMPRESS,
+    WATCH,
+    MIGRATE,
+    ARRIVE,
+    HANDOFF,
+    SPECTATE,
+    PEER;
+
+    /** The commands held down to control a spacecraft, sent as bits of an INPUT */
+    public static final Set<Command> CONTROLS = EnumSet.of(TURN_CW, TURN_CCW, FORWARD, FIRE);
+
+    /**
+     * @return This command's bit in an INPUT's bitmask
+     */
+    public int bit() {
+        return 1 << ordinal();
+    }
 
     public static Command fromInt(int index) {
         Command result = null;
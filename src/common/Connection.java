@@ -3,14 +3,33 @@ package common;
 import common.Actor.ActorType;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.vecmath.Vector2d;
 
 /**
  * Sub-classes of Connection abstract sending and receiving data to
@@ -20,9 +39,6 @@ import java.util.List;
  */
 public abstract class Connection {
 
-    protected Socket socket;
-    protected DataOutputStream out;
-    protected DataInputStream in;
     protected String name;
 
     /**
@@ -33,31 +49,126 @@ public abstract class Connection {
     }
 
     /**
-     * Connection.Client encapsulates the server's communication with a client
+     * Connection.Client encapsulates the server's communication with a client.
+     * The client's socket is read and written by a network thread which never
+     * blocks: received bytes are parsed into an inbox of commands and frames
+     * to send are queued in an outbox, so the server's tick never waits on a
+     * socket. The outbox holds the frame being written and at most one more,
+     * the newest, behind it; any frame waiting when a newer one comes is
+     * dropped. A client is also behind while too many ticks it has been sent
+     * are unacknowledged, since the kernel's buffers can hold seconds of
+     * snapshots before the outbox fills. A client which stays behind longer
+     * than Game.SEND_DEADLINE is too slow to play and is disconnected.
+     * Frames for a client which asked for compression wait uncompressed and
+     * are only compressed when they are about to be written, since a frame
+     * dropped after going into its stream would leave the stream corrupt.
      */
     public static class Client extends Connection {
 
         private static final int MAX_NAME_LENGTH = 20;
+        private static final int MAX_HANDSHAKE_CHARS = 256;
+        private static final int INBOX_SIZE = 1024;
+        private static final int MAX_UNACKED = 10;   // Ticks in flight before a client is behind
+        private static final int MAX_HANDOFFS = Game.POPCAP;   // Waiting to be taken
+        private final SocketChannel channel;
         private final int id;
+        private volatile int acknowledged = -1;
+        private int appliedInput;
+        private volatile InetSocketAddress datagramAddress;
+        private volatile InetSocketAddress migrationAddress;
+        private volatile int peerPort = -1;   // The port a server sending PEER listens on
+        private volatile boolean peer;        // If the server has checked that port
+        private volatile boolean closed;
+        // Commands and inputs received but not yet taken by the server,
+        // guarded by inbox
+        private final int[] inbox;
+        private int inboxStart;
+        private int inboxCount;
+        private int pendingControls;
+        private int pendingInput;
+        private final List<Spacecraft> handoffs;
+        // The frame being written and the one waiting behind it, guarded by outboxStream
+        private ByteBuffer outbox;
+        private ByteBuffer waiting;
+        private ByteBuffer target;       // The one of the two being filled
+        private long behindSince = -1;   // When a frame first had to wait, -1 if none is
+        private int lastSentTick = -1;
+        private int sent;                // Bytes of the outbox already written
+        private FrameCompressor compressor;   // null unless the client asked for compression
+        private final OutputStream outboxStream;
 
         /**
-         * Creates a new client connection on the given socket
-         * @param socket The socket on which a client is already connected
-         * @throws IOException If the handshake data is not received correctly
+         * Creates a new client connection once its handshake has been read
+         * @param channel The channel on which a client is connected
+         * @param id The identifier the client sent
+         * @param name The name the client sent
          */
-        public Client(Socket socket) throws IOException {
-            this.socket = socket;
-            socket.setTcpNoDelay(true);
-            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            id = in.readInt();
+        private Client(SocketChannel channel, int id, String name) {
+            this.channel = channel;
+            this.id = id;
+            this.name = name;
+            inbox = new int[INBOX_SIZE];
+            handoffs = new ArrayList<Spacecraft>();
+            outbox = ByteBuffer.allocate(8192);
+            waiting = ByteBuffer.allocate(8192);
+            outboxStream = new OutputStream() {
 
-            char[] buffer = new char[MAX_NAME_LENGTH];
-            int i = 0;
-            do {
-                buffer[i] = in.readChar();
-            } while (buffer[i] != '\n' && ++i < MAX_NAME_LENGTH);
-            name = String.copyValueOf(buffer);
+                @Override
+                public void write(int b) {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) {
+                    if (target.remaining() < length) {
+                        ByteBuffer larger = ByteBuffer.allocate(
+                                Math.max(2 * target.capacity(), target.position() + length));
+                        target.flip();
+                        larger.put(target);
+                        if (target == outbox) {
+                            outbox = larger;
+                        } else {
+                            waiting = larger;
+                        }
+                        target = larger;
+                    }
+                    target.put(bytes, offset, length);
+                }
+            };
+        }
+
+        /**
+         * Reads a client's handshake, its identifier then its name as chars
+         * ending with a newline
+         * @param channel The channel the client is connected on
+         * @param received The bytes received so far, ready to be read from;
+         * the handshake is taken out of it once it is complete
+         * @return The new client, or null if the handshake is not all there
+         * @throws IOException If the handshake is malformed
+         */
+        public static Client handshake(SocketChannel channel, ByteBuffer received)
+                throws IOException {
+            if (received.remaining() < 4) {
+                return null;
+            }
+            int start = received.position();
+            int length = 0;
+            for (int i = start + 4; i + 1 < received.limit(); i += 2) {
+                length++;
+                if (received.getChar(i) == '\n') {
+                    int id = received.getInt(start);
+                    char[] buffer = new char[Math.min(length, MAX_NAME_LENGTH)];
+                    for (int c = 0; c < buffer.length; c++) {
+                        buffer[c] = received.getChar(start + 4 + 2 * c);
+                    }
+                    received.position(i + 2);
+                    return new Client(channel, id, String.copyValueOf(buffer).trim());
+                }
+            }
+            if (length > MAX_HANDSHAKE_CHARS) {
+                throw new IOException("Client name too long");
+            }
+            return null;
         }
 
         /**
@@ -68,77 +179,418 @@ public abstract class Connection {
         }
 
         /**
-         * Fills a command buffer with the users input commands.
+         * @return The channel the client is connected on
+         */
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * @return The tick of the latest snapshot the client has acknowledged,
+         * -1 if the client needs a keyframe
+         */
+        public int getAcknowledged() {
+            return acknowledged;
+        }
+
+        /**
+         * Forgets the client's acknowledgements so that the next snapshot
+         * it is sent is a keyframe
+         */
+        public void resetAcknowledged() {
+            acknowledged = -1;
+        }
+
+        /**
+         * @return The sequence number of the latest of the client's inputs
+         * which the server has applied, 0 if none
+         */
+        public int getAppliedInput() {
+            return appliedInput;
+        }
+
+        /**
+         * @return Where the client wants snapshots sent as datagrams, or null
+         * if they should go over its TCP connection
+         */
+        public InetSocketAddress getDatagramAddress() {
+            return datagramAddress;
+        }
+
+        /**
+         * @return The address of the server the client last asked to have
+         * its spacecraft handed to with MIGRATE, null if none
+         */
+        public InetSocketAddress getMigrationAddress() {
+            return migrationAddress;
+        }
+
+        /**
+         * @return The address of the server this connection says it comes
+         * from with PEER, null if it has not said
+         */
+        public InetSocketAddress getPeerAddress() {
+            int port = peerPort;
+            return port < 0 ? null : new InetSocketAddress(channel.socket().getInetAddress(), port);
+        }
+
+        /**
+         * Accepts the spacecraft this connection hands over, once the server
+         * has checked that getPeerAddress is another server's
+         */
+        public void trustAsPeer() {
+            peer = true;
+        }
+
+        /**
+         * Takes out the spacecraft another server has handed over on this
+         * connection since the last call, if it has been trusted as a peer
+         * @param spacecraft The collection to add them to
+         */
+        public void takeHandoffs(Collection<Spacecraft> spacecraft) {
+            if (!peer) {
+                return;
+            }
+            synchronized (inbox) {
+                spacecraft.addAll(handoffs);
+                handoffs.clear();
+            }
+        }
+
+        /**
+         * Takes the messages out of bytes received from the client. Any
+         * partial message is left in the buffer for the next call. Each
+         * message is a command's ordinal value in a byte, followed by:
+         *   ACK: int tick of the latest snapshot received
+         *   DATAGRAMS: int UDP port to send snapshots to
+         *   INPUT: byte bitmask of the Command.CONTROLS held, int sequence number
+         *   MIGRATE: byte length of an IP address, the address, int TCP port
+         *   PEER: int TCP port the server sending it listens on
+         *   HANDOFF: the spacecraft written by Spacecraft.writeHandoff, only after PEER
+         *   EXIT, ENTRY, ARRIVE, SPECTATE, COMPRESS, WATCH: nothing
+         * COMPRESS must come before the first ENTRY, as every frame after it
+         * is compressed. Acknowledgements and datagram requests are recorded, inputs are
+         * merged until the server takes them, spacecraft handed over are
+         * kept for takeHandoffs and anything else is kept in the inbox. A
+         * MIGRATE or PEER dropped because the inbox is full changes nothing.
+         * @param received The bytes received, ready to be read from
+         * @throws IOException if a message is not one a client sends
+         */
+        public void receive(ByteBuffer received) throws IOException {
+            while (received.hasRemaining()) {
+                int start = received.position();
+                Command command = Command.fromInt(received.get() & 0xFF);
+                if (command == null) {
+                    throw new IOException("Unknown command from " + name);
+                }
+                switch (command) {
+                    case ACK:
+                    case DATAGRAMS:
+                        if (received.remaining() < 4) {
+                            received.position(start);
+                            return;
+                        }
+                        if (command == Command.ACK) {
+                            acknowledged = received.getInt();
+                        } else {
+                            datagramAddress = new InetSocketAddress(
+                                    channel.socket().getInetAddress(), received.getInt());
+                        }
+                        break;
+                    case INPUT:
+                        if (received.remaining() < 5) {
+                            received.position(start);
+                            return;
+                        }
+                        int controls = received.get() & 0xFF;
+                        int sequence = received.getInt();
+                        synchronized (inbox) {
+                            // Several inputs within a tick are taken as one, so
+                            // a key tapped in any of them is not lost
+                            pendingControls |= controls;
+                            pendingInput = sequence;
+                        }
+                        break;
+                    case COMPRESS:
+                        synchronized (outboxStream) {
+                            if (compressor == null && !closed) {
+                                compressor = new FrameCompressor(FrameCompressor.LEVEL);
+                            }
+                        }
+                        break;
+                    case HANDOFF:
+                        if (peerPort < 0) {
+                            throw new IOException("Unexpected HANDOFF from " + name);
+                        }
+                        if (received.remaining() < Spacecraft.HANDOFF_SIZE) {
+                            received.position(start);
+                            return;
+                        }
+                        Spacecraft spacecraft = Spacecraft.readHandoff(received);
+                        synchronized (inbox) {
+                            if (handoffs.size() == MAX_HANDOFFS) {
+                                System.err.println("too many handoffs received");
+                                break;
+                            }
+                            handoffs.add(spacecraft);
+                        }
+                        break;
+                    case MIGRATE:
+                        if (received.remaining() < 1
+                                || received.remaining() < 1 + (received.get(received.position()) & 0xFF) + 4) {
+                            received.position(start);
+                            return;
+                        }
+                        byte[] address = new byte[received.get() & 0xFF];
+                        received.get(address);
+                        InetSocketAddress destination = new InetSocketAddress(
+                                InetAddress.getByAddress(address), received.getInt());
+                        synchronized (inbox) {
+                            // Set with the command, so the server reads the address it came with
+                            if (enqueue(command)) {
+                                migrationAddress = destination;
+                            }
+                        }
+                        break;
+                    case PEER:
+                        if (received.remaining() < 4) {
+                            received.position(start);
+                            return;
+                        }
+                        int port = received.getInt();
+                        synchronized (inbox) {
+                            if (enqueue(command)) {
+                                peerPort = port;
+                            }
+                        }
+                        break;
+                    case EXIT:
+                    case ENTRY:
+                    case ARRIVE:
+                    case SPECTATE:
+                    case WATCH:
+                        enqueue(command);
+                        break;
+                    default:
+                        throw new IOException("Unexpected " + command + " from " + name);
+                }
+            }
+        }
+
+        /**
+         * Adds a command to the inbox for the server to take
+         * @return false if the inbox was full and the command dropped
+         */
+        private boolean enqueue(Command command) {
+            synchronized (inbox) {
+                if (inboxCount == inbox.length) {
+                    System.err.println("too many commands received");
+                    return false;
+                }
+                inbox[(inboxStart + inboxCount++) % inbox.length] = command.ordinal();
+                return true;
+            }
+        }
+
+        /**
+         * Fills a command buffer with the client's EXIT, ENTRY, ARRIVE, MIGRATE,
+         * PEER, SPECTATE and WATCH commands.
          * @param commandBuffer an empty buffer to be filled with the ordinal
          * values of the client's commands
          * @return The number of commands received
-         * @throws IOException If a connection problem occurs
+         * @throws IOException If the client has disconnected
          */
         public int getCommands(int[] commandBuffer) throws IOException {
-            int i = 0;
-            while (in.available() > 0) {
-                commandBuffer[i++] = in.readInt();
-                if (i == Game.COMMAND_BUFFER_SIZE) {
-                    System.err.println("too many commands received");
-                    break;
+            if (closed) {
+                throw new IOException("Client disconnected");
+            }
+            synchronized (inbox) {
+                int i = 0;
+                while (inboxCount > 0 && i < Game.COMMAND_BUFFER_SIZE) {
+                    commandBuffer[i++] = inbox[inboxStart];
+                    inboxStart = (inboxStart + 1) % inbox.length;
+                    inboxCount--;
                 }
+                return i;
             }
-            return i;
         }
 
         /**
-         * Sends the client a list of identifiers for all current actors on this server
-         * @param actors The actors to convert into a header and transmit
-         * @param clients The clients currently connected to the server (their names are sent)
-         * @throws IOException if transmission fails
+         * Takes every input received since the last call as one, and records
+         * the latest of them as applied
+         * @return The bitmask of the Command.CONTROLS held in any of the
+         * inputs, or -1 if none have been received
          */
-        public void sendHeader(Collection<Actor> actors, Collection<Client> clients) throws IOException {
-            out.writeInt(actors.size());
-            for (Actor actor : actors) {
-                out.writeInt(actor.getID());
-                out.writeInt(actor.getActorType());
+        public int takeInput() {
+            synchronized (inbox) {
+                if (pendingInput == appliedInput) {
+                    return -1;
+                }
+                int controls = pendingControls;
+                appliedInput = pendingInput;
+                pendingControls = 0;
+                return controls;
             }
+        }
 
-            out.writeShort(clients.size());
-            for (Client client : clients) {
-                out.writeUTF(client.name);
+        /**
+         * Queues an already encoded frame of game state to be written, in
+         * place of any frame still waiting to be started. If the client has
+         * not acknowledged any of the last MAX_UNACKED ticks it was sent the
+         * frame is not sent at all, as it would only arrive behind frames
+         * which are already stale.
+         * @param frame The bytes to transmit, shared between clients
+         * @param tick The tick of the snapshot in the frame
+         * @throws IOException if the client has disconnected, or has been
+         * behind for longer than the deadline
+         */
+        public void sendFrame(ByteArrayOutputStream frame, int tick) throws IOException {
+            if (closed) {
+                throw new IOException("Client disconnected");
+            }
+            boolean unacknowledged = acknowledged >= 0 && lastSentTick - acknowledged >= MAX_UNACKED;
+            synchronized (outboxStream) {
+                if (outbox.position() == 0 && waiting.position() == 0 && !unacknowledged) {
+                    behindSince = -1;
+                } else {
+                    long now = System.currentTimeMillis();
+                    if (behindSince < 0) {
+                        behindSince = now;
+                    } else if (now - behindSince > Game.SEND_DEADLINE) {
+                        throw new IOException(name + " has been behind for too long");
+                    }
+                    waiting.clear();
+                    if (unacknowledged) {
+                        return;
+                    }
+                }
+                target = outbox.position() == 0 && compressor == null ? outbox : waiting;
+                frame.writeTo(outboxStream);
+                lastSentTick = tick;
             }
-            out.flush();
         }
 
         /**
-         * Takes an already marshaled actor and transmits
-         * @param actorBuffer The actor data to transmit
-         * @throws IOException if transmission fails
+         * @return true if there are bytes waiting to be written
          */
-        public void sendActor(double[] actorBuffer) throws IOException {
-            for (int i = 0; i < actorBuffer.length; i++) {
-                out.writeDouble(actorBuffer[i]);
+        public boolean hasOutput() {
+            synchronized (outboxStream) {
+                return outbox.position() > sent || waiting.position() > 0;
             }
-            out.flush();
+        }
+
+        /**
+         * Writes as much of the outbox as the socket will take, starting on
+         * the waiting frame once the one before is done. The outbox is not
+         * locked while the socket is written, so a blocking socket holds up
+         * only the thread writing it, which must be the only one to.
+         * @return true if everything queued has been written
+         * @throws IOException if the socket fails
+         */
+        public boolean write() throws IOException {
+            while (true) {
+                ByteBuffer sending;
+                synchronized (outboxStream) {
+                    if (sent == outbox.position()) {
+                        outbox.clear();
+                        sent = 0;
+                        if (waiting.position() == 0) {
+                            return true;
+                        }
+                        if (compressor == null) {
+                            ByteBuffer written = outbox;
+                            outbox = waiting;
+                            waiting = written;
+                        } else {
+                            outbox = compressor.compress(waiting.array(), waiting.position(), outbox);
+                            waiting.clear();
+                        }
+                    }
+                    // Frames are only added to the outbox while it is empty,
+                    // so the bytes viewed stay as they are
+                    sending = outbox.duplicate();
+                    sending.flip();
+                    sending.position(sent);
+                }
+                try {
+                    channel.write(sending);
+                } finally {
+                    synchronized (outboxStream) {
+                        sent = sending.position();
+                    }
+                }
+                if (sending.hasRemaining()) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * @return true if the connection has been closed
+         */
+        public boolean isClosed() {
+            return closed;
         }
 
         /**
          * Attempts to close the socket, failure not registered
          */
         public void close() {
+            closed = true;
             try {
-                socket.close();
+                channel.close();
             } catch (IOException e) {
                 //Don't care
             }
+            synchronized (outboxStream) {
+                if (compressor != null) {
+                    compressor.end();
+                    compressor = null;
+                }
+            }
         }
     }
 
     /**
      * Encapsulates how a client sees a server and handles all data
-     * transmission and reception.
+     * transmission and reception. Snapshots may be received on one thread
+     * while commands are sent on another; joining waits for a snapshot being
+     * received to be finished with.
      */
     public static class Server extends Connection {
 
-        private final List<Integer> actorList;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        // Snapshots arrive here instead of on the socket if the client asked
+        // for them as datagrams
+        private final DatagramChannel datagrams;
+        private final Selector datagramSelector;
+        private final ByteBuffer packet;
+        private final ByteArrayInputStream packetBytes;
+        private final DataInputStream packetIn;
+        // Frames are inflated into here if the client asked for compression
+        private final Inflater inflater;
+        private byte[] compressed;
+        private byte[] inflated;
+        private final FrameBytes inflatedBytes;
+        private final DataInputStream inflatedIn;
+        private final Snapshot[] history;
+        private Snapshot current;
+        private int acknowledged = -1;
+        private volatile int receivedTick = -1;
+        private int inputSequence;
+        private int appliedInput;
+        private final Vector2d velocity = new Vector2d();
+        private final Roster roster = new Roster();
+        private final Object receiving = new Object();   // Held while the history is changed
         private long lastRefreshed;
         private static final long TIMEOUT = 1200;
+        private static final int RECEIVE_TIMEOUT = 1000;
+        /** The bytes of a frame after its length and before the roster changes */
+        public static final int HEADER_SIZE = 21;
+        /** The largest snapshot that can be sent as a datagram */
+        public static final int MAX_DATAGRAM = 65507;
 
         /**
          * Attempts a connection to the given machine and save's its name and id
@@ -150,40 +602,145 @@ public abstract class Connection {
          */
         public Server(InetAddress host, int port, String name, int id) throws IOException {
             this.name = name;
-            actorList = new ArrayList<Integer>(Game.POPCAP);
+            history = new Snapshot[Snapshot.HISTORY];
+            for (int i = 0; i < history.length; i++) {
+                history[i] = new Snapshot();
+            }
+            current = history[0];
             socket = new Socket(host, port);
             out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
             in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
             out.writeInt(id);
             out.writeChars(System.getProperty("user.name") + '\n');
-            socket.setSoTimeout(1000);
+            socket.setSoTimeout(RECEIVE_TIMEOUT);
             socket.setTcpNoDelay(true);
+            if (Game.SNAPSHOT_TRANSPORT.equals("udp")) {
+                byte[] buffer = new byte[MAX_DATAGRAM];
+                datagrams = DatagramChannel.open();
+                datagrams.socket().setReceiveBufferSize(4 * MAX_DATAGRAM);
+                datagrams.socket().bind(null);
+                datagrams.configureBlocking(false);
+                datagramSelector = Selector.open();
+                datagrams.register(datagramSelector, SelectionKey.OP_READ);
+                packet = ByteBuffer.wrap(buffer);
+                packetBytes = new ByteArrayInputStream(buffer);
+                packetIn = new DataInputStream(packetBytes);
+                out.writeByte(Command.DATAGRAMS.ordinal());
+                out.writeInt(datagrams.socket().getLocalPort());
+            } else {
+                datagrams = null;
+                datagramSelector = null;
+                packet = null;
+                packetBytes = null;
+                packetIn = null;
+            }
+            // Datagrams may be lost, so they cannot be parts of a stream
+            if (Game.COMPRESSION.equals("deflate") && datagrams == null) {
+                inflater = new Inflater(true);
+                compressed = new byte[8192];
+                inflated = new byte[8192];
+                inflatedBytes = new FrameBytes();
+                inflatedIn = new DataInputStream(inflatedBytes);
+                out.writeByte(Command.COMPRESS.ordinal());
+            } else {
+                inflater = null;
+                inflatedBytes = null;
+                inflatedIn = null;
+            }
             lastRefreshed = System.currentTimeMillis();
             out.flush();
         }
 
         /**
-         * Checks if this is the same as a potential connection
-         * @param address The other server's address
-         * @param port The other server's port
-         * @return true if this is the same server, false otherwise
+         * Listens to the snapshots a server multicasts to spectators on the
+         * LAN, without connecting to it. The connection can only receive,
+         * nothing can be sent on it.
+         * @param port The server's TCP port, which it multicasts to as well
+         * @param name The server's name
+         * @throws IOException If the group cannot be joined
          */
-        public boolean is(InetAddress address, int port) {
-            //TODO: port is used as an ad-hoc server unique identifier as other
-            // techniques failed on different networks.
-            return (socket.getPort() == port);
+        public Server(int port, String name) throws IOException {
+            this.name = name;
+            history = new Snapshot[Snapshot.HISTORY];
+            for (int i = 0; i < history.length; i++) {
+                history[i] = new Snapshot();
+            }
+            current = history[0];
+            socket = null;
+            out = null;
+            in = null;
+            byte[] buffer = new byte[MAX_DATAGRAM];
+            datagrams = DatagramChannel.open(StandardProtocolFamily.INET);
+            datagrams.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            datagrams.setOption(StandardSocketOptions.SO_RCVBUF, 4 * MAX_DATAGRAM);
+            datagrams.bind(new InetSocketAddress(port));
+            datagrams.join(InetAddress.getByName(Game.SPECTATOR_GROUP), multicastInterface());
+            datagrams.configureBlocking(false);
+            datagramSelector = Selector.open();
+            datagrams.register(datagramSelector, SelectionKey.OP_READ);
+            packet = ByteBuffer.wrap(buffer);
+            packetBytes = new ByteArrayInputStream(buffer);
+            packetIn = new DataInputStream(packetBytes);
+            inflater = null;
+            inflatedBytes = null;
+            inflatedIn = null;
+            lastRefreshed = System.currentTimeMillis();
         }
 
         /**
-         * Sends a group of commands by their ordinal values
+         * @return The first network interface which is up and can multicast,
+         * preferring any but the loopback
+         */
+        private static NetworkInterface multicastInterface() throws IOException {
+            NetworkInterface loopback = null;
+            for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (candidate.isUp() && candidate.supportsMulticast()) {
+                    if (!candidate.isLoopback()) {
+                        return candidate;
+                    }
+                    loopback = candidate;
+                }
+            }
+            if (loopback == null) {
+                throw new IOException("No network interface can multicast");
+            }
+            return loopback;
+        }
+
+        /**
+         * Sends the commands held as the next input, meant to be called once
+         * a tick, along with an acknowledgement of the latest snapshot if it
+         * has not been sent. Controls are sent as a bitmask, ENTRY and EXIT
+         * each on their own, anything else is not sent.
+         * Messages are laid out as Connection.Client.receive reads them.
+         * Nothing is sent on a connection which only listens to a multicast.
          * @param commands The command set to send
+         * @return The input's sequence number, which snapshots report back
+         * once the server has applied it
          * @throws IOException if the link to the server was lost
          */
-        public void send(Collection<Command> commands) throws IOException {
+        public int send(Collection<Command> commands) throws IOException {
+            if (out == null) {
+                return inputSequence;
+            }
+            int controls = 0;
             for (Command command : commands) {
-                out.writeInt(command.ordinal());
+                if (Command.CONTROLS.contains(command)) {
+                    controls |= command.bit();
+                } else if (command == Command.ENTRY || command == Command.EXIT) {
+                    out.writeByte(command.ordinal());
+                }
+            }
+            out.writeByte(Command.INPUT.ordinal());
+            out.writeByte(controls);
+            out.writeInt(++inputSequence);
+            if (receivedTick != acknowledged) {
+                acknowledged = receivedTick;
+                out.writeByte(Command.ACK.ordinal());
+                out.writeInt(acknowledged);
             }
             out.flush();
+            return inputSequence;
         }
 
         /**
@@ -191,7 +748,7 @@ public abstract class Connection {
          */
         public void leave() {
             try {
-                out.writeInt(Command.EXIT.ordinal());
+                out.writeByte(Command.EXIT.ordinal());
                 out.flush();
             } catch (IOException e) {
                 // don't care
@@ -199,34 +756,299 @@ public abstract class Connection {
         }
 
         /**
-         * Tells the server that the client wishes to join the server's game
+         * Tells the server that the client wishes to join the server's game.
+         * The server answers with a keyframe, so older snapshots are dropped.
          * @throws IOException
          */
         public void join() throws IOException {
-            out.writeInt(Command.ENTRY.ordinal());
+            enter(Command.ENTRY);
+        }
+
+        /**
+         * Tells the server that the client is arriving by hyperspace, with
+         * the spacecraft the server it left hands over. Otherwise as join.
+         * @throws IOException if the link to the server was lost
+         */
+        public void arrive() throws IOException {
+            enter(Command.ARRIVE);
+        }
+
+        /**
+         * Asks the server for every snapshot of its game without joining it,
+         * as a relay does. Otherwise as join; leave stops the snapshots.
+         * @throws IOException if the link to the server was lost
+         */
+        public void spectate() throws IOException {
+            enter(Command.SPECTATE);
+        }
+
+        /**
+         * Tells the server the spacecraft is leaving for another server,
+         * which it is to be handed to. The client will stay connected.
+         * @param destination The address the server the client is going to
+         * advertised itself from, as the server it is leaving knows it
+         */
+        public void migrate(InetSocketAddress destination) {
+            byte[] address = destination.getAddress().getAddress();
+            try {
+                out.writeByte(Command.MIGRATE.ordinal());
+                out.writeByte(address.length);
+                out.write(address);
+                out.writeInt(destination.getPort());
+                out.flush();
+            } catch (IOException e) {
+                // don't care, as for leave
+            }
+        }
+
+        /**
+         * Drops any snapshots kept and sends a command entering the game
+         */
+        private void enter(Command command) throws IOException {
+            synchronized (receiving) {
+                for (int i = 0; i < history.length; i++) {
+                    history[i].clear();
+                }
+                current = history[0];
+                roster.clear();
+                receivedTick = -1;
+                acknowledged = -1;
+            }
+            out.writeByte(command.ordinal());
+            out.flush();
+        }
+
+        /**
+         * Asks the server for an occasional keyframe while the client is not
+         * in its game, so that the game can be shown the moment it is joined.
+         * The keyframes stop once the client joins or leaves.
+         * @throws IOException if the link to the server was lost
+         */
+        public void watch() throws IOException {
+            out.writeByte(Command.WATCH.ordinal());
             out.flush();
         }
 
         /**
-         * Retrieves the series of n + 1 ints that the server sends before actors
-         * Retrieves a list of connected client's  names
-         * @param clientNames A collection to fill with client names
-         * @return Number of actors n in the above comment
+         * Receives the next snapshot the server sends along with any changes
+         * to the roster. Snapshots are sent as changes to an older one, any
+         * that cannot be applied (because they were sent before a join) are
+         * skipped. Snapshots sent as datagrams may arrive late, twice or not
+         * at all, so any older than the latest one applied are dropped as well.
+         * Each frame, whether on the socket or in a datagram, is laid out as:
+         *   int length of the rest of the frame
+         *   int sequence number of the latest input of this client's applied
+         *   float, float velocity of this client's spacecraft
+         *   byte version of the ActorCodec the frame was written with
+         *   int tick, int baseline tick or -1 for a keyframe
+         *   the roster changes written by Roster.writeChanges
+         *   the changes written by Snapshot.writeDelta
+         * If snapshots are compressed each frame on the socket is instead a
+         * block of the stream written by FrameCompressor, which inflates to
+         * the frame.
+         * @return Number of actors in the snapshot
+         * @throws IOException if the server is down
+         */
+        public int receiveHeaders() throws IOException {
+            receive(true);
+            return current.size();
+        }
+
+        /**
+         * Applies the next snapshot if one has already arrived, without
+         * waiting for one if it has not. Frames are read as by receiveHeaders.
+         * @return true if a snapshot was applied, its actors are then
+         * available from getSnapshot
          * @throws IOException if the server is down
          */
-        public int receiveHeaders(Collection<String> clientNames) throws IOException {
-            actorList.clear();
-            int numActors = in.readInt();
-            for (int i = 0; i < numActors * 2; i++) {
-                actorList.add(in.readInt());
+        public boolean poll() throws IOException {
+            return receive(false);
+        }
+
+        /**
+         * Waits for part of a frame to arrive, without reading any of it
+         * @param millis The longest to wait in milliseconds
+         * @return true if there is something to read, false if nothing came
+         * @throws IOException if the server is down
+         */
+        public boolean await(int millis) throws IOException {
+            if (datagrams != null) {
+                if (datagramSelector.select(millis) == 0) {
+                    return false;
+                }
+                datagramSelector.selectedKeys().clear();
+                return true;
             }
+            if (in.available() > 0) {
+                return true;
+            }
+            // A timed out read takes nothing from the buffered stream
+            socket.setSoTimeout(millis);
+            try {
+                in.mark(1);
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                in.reset();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                socket.setSoTimeout(RECEIVE_TIMEOUT);
+            }
+        }
 
-            short numClients = in.readShort();
-            for (int i = 0; i < numClients; i++) {
-                clientNames.add(in.readUTF().trim());
+        /**
+         * Reads frames until one is applied or, if not blocking, until there
+         * are none left to read
+         * @return true if a frame was applied
+         */
+        private boolean receive(boolean block) throws IOException {
+            synchronized (receiving) {
+                return receiveFrames(block);
             }
+        }
 
-            return numActors;
+        private boolean receiveFrames(boolean block) throws IOException {
+            if (datagrams == null) {
+                while (block || in.available() >= 4) {
+                    int length = in.readInt();
+                    if (inflater == null) {
+                        if (readFrame(in, length)) {
+                            return true;
+                        }
+                    } else {
+                        inflate(length);
+                        if (readFrame(inflatedIn, inflatedIn.readInt())) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            while (true) {
+                packet.clear();
+                if (datagrams.receive(packet) == null) {
+                    if (!block) {
+                        return false;
+                    }
+                    if (datagramSelector.select(RECEIVE_TIMEOUT) == 0) {
+                        throw new SocketTimeoutException("No snapshot from " + name);
+                    }
+                    datagramSelector.selectedKeys().clear();
+                    continue;
+                }
+                packetBytes.reset();
+                int length = packetIn.readInt();
+                if (length <= packet.position() - 4 && readFrame(packetIn, length)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Reads a block of the compressed stream from the socket and inflates
+         * it into a whole frame, ready to be read from inflatedIn
+         * @param length The length of the block
+         */
+        private void inflate(int length) throws IOException {
+            if (compressed.length < length) {
+                compressed = new byte[Math.max(length, 2 * compressed.length)];
+            }
+            in.readFully(compressed, 0, length);
+            inflater.setInput(compressed, 0, length);
+            int total = 0;
+            try {
+                // Each block is flushed, so a buffer left with room means it is all out
+                while (true) {
+                    total += inflater.inflate(inflated, total, inflated.length - total);
+                    if (total < inflated.length) {
+                        break;
+                    }
+                    inflated = Arrays.copyOf(inflated, 2 * inflated.length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt snapshot from " + name, e);
+            }
+            inflatedBytes.set(inflated, total);
+        }
+
+        /**
+         * Reads the rest of a frame after its length
+         * @return true if the frame was applied, false if it was skipped
+         */
+        private boolean readFrame(DataInputStream in, int length) throws IOException {
+            int input = in.readInt();
+            float vx = in.readFloat();
+            float vy = in.readFloat();
+            int version = in.readUnsignedByte();
+            int tick = in.readInt();
+            int baselineTick = in.readInt();
+            if (version >= ActorCodec.VERSIONS.length) {
+                throw new IOException("Unknown snapshot version " + version);
+            }
+            ActorCodec codec = ActorCodec.VERSIONS[version];
+            Snapshot baseline = null;
+            if (baselineTick >= 0) {
+                baseline = history[baselineTick % history.length];
+                if (baseline.getTick() != baselineTick || tick - baselineTick >= history.length) {
+                    skipFully(in, length - HEADER_SIZE);
+                    return false;
+                }
+            }
+            if (tick <= current.getTick()) {
+                skipFully(in, length - HEADER_SIZE);
+                return false;
+            }
+
+            roster.readChanges(in, baseline == null);
+            current = history[tick % history.length];
+            current.readDelta(in, tick, baseline, codec);
+            appliedInput = input;
+            velocity.set(vx, vy);
+            receivedTick = tick;
+            return true;
+        }
+
+        /**
+         * @return The latest snapshot received, replaced by the next
+         * receiveHeaders or poll which applies one
+         */
+        public Snapshot getSnapshot() {
+            return current;
+        }
+
+        /**
+         * @return The players in the game as of the latest snapshot, only to
+         * be used by the thread receiving snapshots
+         */
+        public Roster getRoster() {
+            return roster;
+        }
+
+        /**
+         * @return The sequence number of the latest input the server had
+         * applied when it took the latest snapshot, 0 if none
+         */
+        public int getAppliedInput() {
+            return appliedInput;
+        }
+
+        /**
+         * Copies the velocity of this client's spacecraft in the latest snapshot
+         * @param result The vector to fill
+         * @return result
+         */
+        public Vector2d getVelocity(Vector2d result) {
+            result.set(velocity);
+            return result;
+        }
+
+        /**
+         * @return The tick of the latest snapshot received, -1 if none
+         */
+        public int getTick() {
+            return current.getTick();
         }
 
         /**
@@ -234,13 +1056,10 @@ public abstract class Connection {
          * @param actorBuffer
          * @param index The actor's index
          * @return The actor's id
-         * @throws IOException
          */
-        public int receiveActor(double[] actorBuffer, int index) throws IOException {
-            for (int i = 0; i < actorBuffer.length; i++) {
-                actorBuffer[i] = in.readDouble();
-            }
-            return actorList.get(2 * index);
+        public int receiveActor(double[] actorBuffer, int index) {
+            current.getState(index, actorBuffer);
+            return current.getID(index);
         }
 
         /**
@@ -249,7 +1068,20 @@ public abstract class Connection {
          * @return the ordinal value of the actor from
          */
         public ActorType getActorType(int i) {
-            return Actor.ActorType.fromInt(actorList.get(2 * i + 1));
+            return Actor.ActorType.fromInt(current.getType(i));
+        }
+
+        /**
+         * Discards bytes from a stream
+         */
+        private static void skipFully(DataInputStream in, int bytes) throws IOException {
+            while (bytes > 0) {
+                int skipped = in.skipBytes(bytes);
+                if (skipped == 0) {
+                    throw new EOFException();
+                }
+                bytes -= skipped;
+            }
         }
 
         /**
@@ -266,5 +1098,22 @@ public abstract class Connection {
         public void heartbeat() {
             lastRefreshed = System.currentTimeMillis();
         }
+
+        /**
+         * A stream over whichever bytes were inflated last
+         */
+        private static class FrameBytes extends ByteArrayInputStream {
+
+            FrameBytes() {
+                super(new byte[0]);
+            }
+
+            void set(byte[] bytes, int length) {
+                buf = bytes;
+                pos = 0;
+                mark = 0;
+                count = length;
+            }
+        }
     }
 }
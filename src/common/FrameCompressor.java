@@ -0,0 +1,74 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * A FrameCompressor turns the frames sent to one client into a single
+ * deflate stream, flushed at the end of every frame so that each can be
+ * inflated as soon as it arrives. The compressor's state carries over from
+ * one tick to the next, so whatever was sent recently, the names of the
+ * players and the actors' last values, serves as the dictionary for the
+ * next frame, which is mostly the same. The stream is raw deflate with no
+ * header, each block is written after its length as an int.
+ * @author Simon, Daniel
+ */
+public class FrameCompressor {
+
+    /** The level snapshots are compressed at, chosen by server.Benchmark */
+    public static final int LEVEL = Deflater.BEST_SPEED;
+    private final Deflater deflater;
+
+    /**
+     * Creates a compressor at the start of a stream
+     * @param level The deflate level, from Deflater.BEST_SPEED to BEST_COMPRESSION
+     */
+    public FrameCompressor(int level) {
+        deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Compresses a frame as the next block of the stream
+     * @param frame The frame's bytes
+     * @param length The number of bytes in the frame
+     * @param out The buffer to write the block's length and the block to
+     * @return out, or a larger copy of it if the block did not fit
+     */
+    public ByteBuffer compress(byte[] frame, int length, ByteBuffer out) {
+        deflater.setInput(frame, 0, length);
+        int start = out.position();
+        out.putInt(0);
+        while (true) {
+            if (out.remaining() < 64) {
+                out = grow(out, length);
+            }
+            int space = out.remaining();
+            int written = deflater.deflate(out.array(), out.position(), space, Deflater.SYNC_FLUSH);
+            out.position(out.position() + written);
+            // A full buffer may mean there is more to come
+            if (written < space) {
+                break;
+            }
+        }
+        out.putInt(start, out.position() - start - 4);
+        return out;
+    }
+
+    /**
+     * Frees the compressor's memory, it cannot be used again
+     */
+    public void end() {
+        deflater.end();
+    }
+
+    /**
+     * @return A copy of a buffer with room for at least the given number of
+     * bytes more, positioned after what was in it
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + needed));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
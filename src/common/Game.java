@@ -2,8 +2,10 @@ package common;
 
 import client.Client;
 import java.awt.Dimension;
+import java.io.File;
 import java.io.IOException;
 import java.util.Random;
+import server.Relay;
 import server.Server;
 
 /**
@@ -19,19 +21,39 @@ public final class Game {
     public static final Dimension APPSIZE = new Dimension(500, 500);
     public static final int BROADCAST_PERIOD = 1000;
     public static final int DEFAULT_UDP_PORT = 9876;
-    public static final int UDP_PACKET_LENGTH = 20;
+    public static final int UDP_PACKET_LENGTH = 72;
     public static final int MAX_SERVER_CONNECTIONS = 50;
     public static final int MAX_SERVERS = 10;
     public static final int POPCAP = 100;
     public static final String MULTICAST_GROUP = "227.0.113.0";
+    public static final String SPECTATOR_GROUP = "227.0.113.1";
     public static final int MIN_PORT = 1024;
     public static final int MAX_PORT = 65536;
     public static final Random rand = new Random(System.currentTimeMillis());
 
+    // Tuning options, set with -Dspacewars.<option>=<value>
+    public static final String GRAVITY_SOLVER = System.getProperty("spacewars.gravity", "pairwise");
+    public static final double OPENING_ANGLE = Double.parseDouble(System.getProperty("spacewars.theta", "0.5"));
+    public static final String SNAPSHOT_TRANSPORT = System.getProperty("spacewars.snapshots", "tcp");
+    public static final String COMPRESSION = System.getProperty("spacewars.compression", "none");
+    public static final String CLIENT_TRANSPORT = System.getProperty("spacewars.transport", "selector");
+    public static final String WIRE_FORMAT = System.getProperty("spacewars.wire", "compact");
+    public static final int PHYSICS_THREADS = Integer.parseInt(System.getProperty("spacewars.threads", "1"));
+    public static final long SEND_DEADLINE = Long.parseLong(System.getProperty("spacewars.deadline", "5000"));
+    public static final String RELAY = System.getProperty("spacewars.relay", "");
+    public static final boolean MULTICAST_SNAPSHOTS = Boolean.parseBoolean(System.getProperty("spacewars.multicast", "false"));
+    public static final String SPECTATE = System.getProperty("spacewars.spectate", "");
+    public static final String RECORD = System.getProperty("spacewars.record", "");
+    public static final String PLAYBACK = System.getProperty("spacewars.playback", "");
+
     /**
      * Program entry point creates a new client and server.
      * Pass any argument or set env var HEADLESS to anything to
-     * go into headless (no client) mode.
+     * go into headless (no client) mode. A headless run with the relay
+     * option set relays that server to spectators instead. With the
+     * spectate option set no server is started, and the client only
+     * watches a server's multicast snapshots, and with playback set it
+     * only plays back a recording.
      * @param args
      */
     public static void main(String[] args) {
@@ -39,11 +61,23 @@ public final class Game {
         boolean headless = System.getenv().containsKey("HEADLESS") || args.length > 0;
 
         try {
+            if (!PLAYBACK.isEmpty()) {
+                new Client(new Recording.Reader(new File(PLAYBACK))).start();
+                return;
+            }
+            if (!SPECTATE.isEmpty()) {
+                new Client(SPECTATE).start();
+                return;
+            }
+            if (headless && !RELAY.isEmpty()) {
+                Relay.start(RELAY, tcpPort);
+                return;
+            }
             Server.start(tcpPort, headless);
             if (!headless) new Client(tcpPort).start();
 
         } catch (IOException e) {
-            System.err.println("No network connection found");
+            System.err.println(PLAYBACK.isEmpty() ? "No network connection found" : e.getMessage());
             System.exit(-1);
         }
     }
@@ -1,6 +1,6 @@
 package common;
 
-import java.awt.*;
+import java.awt.Dimension;
 import javax.vecmath.Vector2d;
 
 /**
@@ -14,11 +14,6 @@ import javax.vecmath.Vector2d;
  */
 public class Missile extends Actor {
 
-    // Missiles are just drawn as simple boxes at the moment.
-    private static Polygon shape = new Polygon(new int[] {8, 12, 12, 8},
-                                               new int[] {8, 8, 12, 12},
-                                               4);
-
     // The delta-V provided by the missile thruster when it fires
     private static final double IMPULSE = 10.0;
     // The distance from the spacecraft the missile has to be before it becomes
@@ -48,8 +43,6 @@ public class Missile extends Actor {
      */
     public Missile(Vector2d initPos, Vector2d initV, double heading) {
         super(initPos, initV);
-        spriteGraphics.setColor(Color.WHITE);
-        spriteGraphics.drawPolygon(shape);
         size = new Dimension(4, 4);
 
         // Move the missile position to the launch distance
@@ -61,7 +54,7 @@ public class Missile extends Actor {
         Vector2d launch_accel = new Vector2d(IMPULSE*Math.cos(heading),
                                              IMPULSE*Math.sin(heading));
         this.accelerate(launch_accel);
-        super.stepTime(); // Force a position update
+        move(); // Force a position update
     }
 
     /**
@@ -72,13 +65,10 @@ public class Missile extends Actor {
      */
     Missile(int actorID, double[] buffer) {
         super(actorID, buffer);
-        spriteGraphics.setColor(Color.getHSBColor((float)buffer[0], 1f, 1f));
-        spriteGraphics.drawPolygon(shape);
     }
 
     /**
-     * Update the missile position and velocity, and check to see if the
-     * missile has exceeded its lifetime.
+     * Check to see if the missile has exceeded its lifetime.
      */
     @Override
     public void stepTime() {
@@ -0,0 +1,402 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Recording is a file of every snapshot a server took, along with the
+ * controls each player had applied on that tick, kept for looking back over
+ * a game after something went wrong in it. The server writes it as it goes
+ * through memory-mapped chunks, so a tick costs no more than copying its
+ * frame; a client plays it back through a mapping of the whole file, and
+ * can seek to any tick by decoding from the keyframe before it.
+ *
+ * Each tick's snapshot is the frame the server would multicast: a delta
+ * from the tick before, or a keyframe every so often, laid out as
+ * Connection.Server.receiveHeaders reads them with the client's own bytes
+ * left as 0. The file is laid out as:
+ *   int MAGIC, int VERSION, int unused, int number of keyframes indexed
+ *   MAX_INDEX index entries: int tick, long position of the keyframe's record
+ *   the records, from DATA_START, each:
+ *     int length of the rest of the record, int tick
+ *     unsigned short number of players whose controls were applied
+ *     for each, int spacecraft ID and byte control bits (see Command.bit)
+ *     the frame, with its own length first
+ * The file grows a chunk at a time, so until it is closed it ends with
+ * zeros, which read as a record of length 0; closing it cuts it back to
+ * its last tick. A recording whose server was killed without closing it
+ * can still be played back up to its last whole tick.
+ * @author Simon, Daniel
+ */
+public final class Recording {
+
+    private Recording() {}
+
+    private static final int MAGIC = 0x53575243;    // "SWRC"
+    private static final int VERSION = 1;
+    private static final int MAX_INDEX = 1 << 16;   // Over 18 hours at one keyframe a second
+    private static final int INDEX_ENTRY = 12;
+    private static final int COUNT_POSITION = 12;
+    private static final int DATA_START = 16 + MAX_INDEX * INDEX_ENTRY;
+    private static final int CHUNK = 4 << 20;
+    private static final int INPUT_SIZE = 5;
+
+    /**
+     * Writes a recording, a tick at a time, from the thread running the game
+     */
+    public static class Writer {
+
+        private final FileChannel channel;
+        private final MappedByteBuffer header;
+        private MappedByteBuffer chunk;
+        private long chunkStart;   // Where in the file the chunk is mapped from
+        private int indexed;
+        private int[] inputIDs;
+        private byte[] inputControls;
+        private int inputs;
+        private boolean closed;
+
+        /**
+         * Starts a new recording, replacing any file already there
+         * @param file The file to record to
+         * @throws IOException if the file cannot be created and mapped
+         */
+        public Writer(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            channel = raf.getChannel();
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_START);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            chunkStart = DATA_START;
+            chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, CHUNK);
+            inputIDs = new int[Game.POPCAP];
+            inputControls = new byte[Game.POPCAP];
+        }
+
+        /**
+         * Notes the controls a player had applied this tick, to be written
+         * along with the tick's snapshot
+         * @param id The ID of the player's spacecraft
+         * @param controls The control bits applied
+         */
+        public void addInput(int id, int controls) {
+            if (inputs == inputIDs.length) {
+                int[] ids = new int[2 * inputs];
+                byte[] bits = new byte[2 * inputs];
+                System.arraycopy(inputIDs, 0, ids, 0, inputs);
+                System.arraycopy(inputControls, 0, bits, 0, inputs);
+                inputIDs = ids;
+                inputControls = bits;
+            }
+            inputIDs[inputs] = id;
+            inputControls[inputs] = (byte) controls;
+            inputs++;
+        }
+
+        /**
+         * Appends a tick, with the inputs added since the last
+         * @param tick The tick the snapshot was taken on
+         * @param frame The snapshot's frame, from its position to its limit
+         * @param keyframe true if the frame has no baseline, so playback can
+         * start from it
+         * @throws IOException if the file cannot be grown
+         */
+        public synchronized void write(int tick, ByteBuffer frame, boolean keyframe) throws IOException {
+            if (closed) {
+                return;
+            }
+            int length = 6 + inputs * INPUT_SIZE + frame.remaining();
+            if (chunk.remaining() < 4 + length) {
+                // Records are never split, so the next chunk starts here
+                chunkStart += chunk.position();
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, Math.max(CHUNK, 8 + length));
+            }
+            if (keyframe && indexed < MAX_INDEX) {
+                int entry = 16 + indexed * INDEX_ENTRY;
+                header.putInt(entry, tick);
+                header.putLong(entry + 4, chunkStart + chunk.position());
+                // Counted only once written, so a reader never sees half an entry
+                header.putInt(COUNT_POSITION, ++indexed);
+            }
+            chunk.putInt(length);
+            chunk.putInt(tick);
+            chunk.putShort((short) inputs);
+            for (int i = 0; i < inputs; i++) {
+                chunk.putInt(inputIDs[i]);
+                chunk.put(inputControls[i]);
+            }
+            chunk.put(frame);
+            inputs = 0;
+        }
+
+        /**
+         * Ends the recording, writing out what is mapped and cutting off the
+         * rest of the last chunk. Any tick written after is dropped, so this
+         * may be called from another thread, such as a shutdown hook.
+         * @throws IOException if the file cannot be written out or closed
+         */
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                header.force();
+                chunk.force();
+                try {
+                    channel.truncate(chunkStart + chunk.position());
+                } catch (IOException e) {
+                    // Some platforms cannot cut back a mapped file; the zeros left read as the end
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Plays a recording back, one tick after another or from any tick
+     */
+    public static class Reader {
+
+        private final ByteBuffer data;
+        private final DataInputStream in;
+        private final int[] indexTicks;
+        private final long[] indexPositions;
+        private final Snapshot[] history;
+        private Snapshot current;
+        private final Roster roster;
+        private int[] inputIDs;
+        private int[] inputControls;
+        private int inputs;
+
+        /**
+         * Opens a recording
+         * @param file The recording
+         * @throws IOException if the file cannot be mapped or is not a recording
+         */
+        public Reader(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // One mapping must do, so only the first 2GB can be played back
+                data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        Math.min(raf.length(), Integer.MAX_VALUE));
+            } finally {
+                raf.close();
+            }
+            if (data.limit() < DATA_START || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a recording");
+            }
+            int indexed = data.getInt(COUNT_POSITION);
+            indexTicks = new int[indexed];
+            indexPositions = new long[indexed];
+            for (int i = 0; i < indexed; i++) {
+                indexTicks[i] = data.getInt(16 + i * INDEX_ENTRY);
+                indexPositions[i] = data.getLong(16 + i * INDEX_ENTRY + 4);
+            }
+            in = new DataInputStream(new MappedInput(data));
+            history = new Snapshot[Snapshot.HISTORY];
+            for (int i = 0; i < history.length; i++) {
+                history[i] = new Snapshot();
+            }
+            current = history[0];
+            roster = new Roster();
+            inputIDs = new int[Game.POPCAP];
+            inputControls = new int[Game.POPCAP];
+            data.position(DATA_START);
+        }
+
+        /**
+         * @return The first tick that can be sought to, -1 if there is none
+         */
+        public int getFirstTick() {
+            return indexTicks.length == 0 ? -1 : indexTicks[0];
+        }
+
+        /**
+         * Reads the next tick
+         * @return true if there was one, false at the end of the recording
+         * @throws IOException if the recording is corrupt
+         */
+        public boolean next() throws IOException {
+            while (data.remaining() >= 8) {
+                int length = data.getInt();
+                if (length <= 0 || length > data.remaining()) {
+                    // The zeros after the last tick, or a tick cut short
+                    data.position(data.position() - 4);
+                    return false;
+                }
+                int end = data.position() + length;
+                data.getInt();
+                readInputs();
+                data.getInt();   // The frame's length, the record's is enough
+                boolean applied = readFrame();
+                data.position(end);
+                if (applied) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Moves to a tick, decoding from the last keyframe at or before it
+         * @param tick The tick to move to, or past the end for the last tick
+         * @return true if it was found, false if it was before the first
+         * keyframe, and nothing has changed
+         * @throws IOException if the recording is corrupt
+         */
+        public boolean seek(int tick) throws IOException {
+            int entry = -1;
+            int low = 0;
+            int high = indexTicks.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (indexTicks[middle] <= tick) {
+                    entry = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            // A keyframe indexed after the file was mapped is not in it yet
+            while (entry >= 0 && indexPositions[entry] >= data.limit()) {
+                entry--;
+            }
+            if (entry < 0) {
+                return false;
+            }
+            data.position((int) indexPositions[entry]);
+            for (Snapshot snapshot : history) {
+                snapshot.clear();
+            }
+            while (current.getTick() < tick && next()) {
+                // Each delta is from the tick before
+            }
+            return true;
+        }
+
+        /**
+         * @return The tick last read
+         */
+        public int getTick() {
+            return current.getTick();
+        }
+
+        /**
+         * @return The snapshot taken on the tick last read
+         */
+        public Snapshot getSnapshot() {
+            return current;
+        }
+
+        /**
+         * @return The players in the game as of the tick last read
+         */
+        public Roster getRoster() {
+            return roster;
+        }
+
+        /**
+         * @return The number of players whose controls were applied on the
+         * tick last read
+         */
+        public int getInputCount() {
+            return inputs;
+        }
+
+        /**
+         * @param index From 0 to getInputCount
+         * @return The ID of that player's spacecraft
+         */
+        public int getInputID(int index) {
+            return inputIDs[index];
+        }
+
+        /**
+         * @param index From 0 to getInputCount
+         * @return The control bits that player had applied
+         */
+        public int getInputControls(int index) {
+            return inputControls[index];
+        }
+
+        private void readInputs() {
+            inputs = data.getShort() & 0xFFFF;
+            if (inputIDs.length < inputs) {
+                inputIDs = new int[inputs];
+                inputControls = new int[inputs];
+            }
+            for (int i = 0; i < inputs; i++) {
+                inputIDs[i] = data.getInt();
+                inputControls[i] = data.get() & 0xFF;
+            }
+        }
+
+        /**
+         * Applies a frame, much as Connection.Server does
+         * @return true if it was applied, false if its baseline is missing
+         */
+        private boolean readFrame() throws IOException {
+            in.skipBytes(12);   // The client's own bytes, not recorded
+            int version = in.readUnsignedByte();
+            int tick = in.readInt();
+            int baselineTick = in.readInt();
+            if (version >= ActorCodec.VERSIONS.length) {
+                throw new IOException("Unknown snapshot version " + version);
+            }
+            Snapshot baseline = null;
+            if (baselineTick >= 0) {
+                baseline = history[baselineTick % history.length];
+                if (baseline.getTick() != baselineTick) {
+                    return false;
+                }
+            }
+            roster.readChanges(in, baseline == null);
+            current = history[tick % history.length];
+            current.readDelta(in, tick, baseline, ActorCodec.VERSIONS[version]);
+            return true;
+        }
+    }
+
+    /**
+     * A stream over the mapped file, from the buffer's position
+     */
+    private static class MappedInput extends InputStream {
+
+        private final ByteBuffer data;
+
+        MappedInput(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return data.hasRemaining() ? data.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, data.remaining());
+            data.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long bytes) {
+            int skipped = (int) Math.min(bytes, data.remaining());
+            data.position(data.position() + skipped);
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Roster is the list of players in a game, kept in the order they joined.
+ * Every player joining or leaving is an event which moves the roster on a
+ * version. The server records which version each snapshot was taken at and
+ * sends a client only the events since the version of the snapshot the
+ * frame is a delta from, or every player for a keyframe, so the names are
+ * only sent when they change. The client keeps the same roster and applies
+ * the events it has not yet seen.
+ *
+ * Changes are written as the version they bring the roster to, the number
+ * of events, then for each the player's ID, a boolean true if they joined,
+ * and if so their name. The events in a delta have consecutive versions.
+ * @author Simon, Daniel
+ */
+public class Roster {
+
+    private final Map<Integer, Member> members;
+    private final ArrayDeque<Event> events;   // Oldest first, server side only
+    private int version = -1;
+    private int updates;
+    private List<String> names;
+
+    /**
+     * A player currently in the roster
+     */
+    private static class Member {
+
+        final String name;
+        int seen;   // The update the player was last seen on
+
+        Member(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * A player joining or leaving
+     */
+    private static class Event {
+
+        final int version;
+        final int id;
+        final String name;   // null for leaving
+
+        Event(int version, int id, String name) {
+            this.version = version;
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Creates an empty roster at no version
+     */
+    public Roster() {
+        members = new LinkedHashMap<Integer, Member>();
+        events = new ArrayDeque<Event>();
+        names = Collections.emptyList();
+    }
+
+    /**
+     * @return The version of the roster, -1 before anything has been read
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The players' names in the order they joined, which does not
+     * change once returned; the same list is returned until the roster does
+     */
+    public List<String> getNames() {
+        if (names == null) {
+            List<String> list = new ArrayList<String>(members.size());
+            for (Member member : members.values()) {
+                list.add(member.name);
+            }
+            names = Collections.unmodifiableList(list);
+        }
+        return names;
+    }
+
+    /**
+     * Forgets every player, for when a client rejoins and will be sent a keyframe
+     */
+    public void clear() {
+        members.clear();
+        events.clear();
+        version = -1;
+        names = Collections.emptyList();
+    }
+
+    /**
+     * Brings the roster up to date with the players in the game, recording
+     * an event for each who joined or left since the last update
+     * @param players The players currently in the game
+     * @return The new version of the roster
+     */
+    public int update(Collection<Connection.Client> players) {
+        begin();
+        for (Connection.Client player : players) {
+            see(player.getID(), player.getName());
+        }
+        return sweep(players.size());
+    }
+
+    /**
+     * Brings the roster up to date with another, as a relay does with the
+     * roster of the server it relays, recording events as update does
+     * @param source The roster to copy the players of
+     * @return The new version of the roster
+     */
+    public int update(Roster source) {
+        begin();
+        for (Map.Entry<Integer, Member> entry : source.members.entrySet()) {
+            see(entry.getKey(), entry.getValue().name);
+        }
+        return sweep(source.members.size());
+    }
+
+    private void begin() {
+        if (version < 0) {
+            version = 0;
+        }
+        updates++;
+    }
+
+    /**
+     * Marks a player as still in the game, adding them if they are new
+     */
+    private void see(int id, String name) {
+        Member member = members.get(id);
+        if (member == null) {
+            member = new Member(name);
+            members.put(id, member);
+            events.add(new Event(++version, id, member.name));
+            names = null;
+        }
+        member.seen = updates;
+    }
+
+    /**
+     * Removes the players not seen since begin
+     * @param count The number of players seen
+     * @return The new version of the roster
+     */
+    private int sweep(int count) {
+        if (members.size() > count) {
+            Iterator<Map.Entry<Integer, Member>> entries = members.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Integer, Member> entry = entries.next();
+                if (entry.getValue().seen != updates) {
+                    entries.remove();
+                    events.add(new Event(++version, entry.getKey(), null));
+                    names = null;
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Forgets the events no client can still need
+     * @param oldest The oldest version a client could have
+     */
+    public void trim(int oldest) {
+        while (!events.isEmpty() && events.peekFirst().version <= oldest) {
+            events.removeFirst();
+        }
+    }
+
+    /**
+     * Writes the changes a client needs to bring its roster up to date
+     * @param out The stream to write to
+     * @param since The version the client has, -1 to write every player
+     * @throws IOException if the stream cannot be written to
+     */
+    public void writeChanges(DataOutputStream out, int since) throws IOException {
+        out.writeInt(version);
+        if (since < 0) {
+            out.writeShort(members.size());
+            for (Map.Entry<Integer, Member> entry : members.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeBoolean(true);
+                out.writeUTF(entry.getValue().name);
+            }
+            return;
+        }
+        out.writeShort(version - since);
+        for (Event event : events) {
+            if (event.version > since) {
+                out.writeInt(event.id);
+                out.writeBoolean(event.name != null);
+                if (event.name != null) {
+                    out.writeUTF(event.name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the changes written by writeChanges, skipping any events
+     * already applied
+     * @param in The stream to read from
+     * @param everyone true if every player was written, as for a keyframe
+     * @throws IOException if the stream cannot be read from
+     */
+    public void readChanges(DataInputStream in, boolean everyone) throws IOException {
+        int newVersion = in.readInt();
+        int count = in.readUnsignedShort();
+        if (everyone) {
+            members.clear();
+            names = null;
+        }
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            String name = in.readBoolean() ? in.readUTF().trim() : null;
+            if (everyone || newVersion - count + 1 + i > version) {
+                if (name == null) {
+                    members.remove(id);
+                } else {
+                    members.put(id, new Member(name));
+                }
+                names = null;
+            }
+        }
+        version = newVersion;
+    }
+}
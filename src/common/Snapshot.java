@@ -0,0 +1,292 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A Snapshot is the state of every actor as sent to clients on one tick,
+ * kept sorted by actor ID. The server keeps a short history of them and
+ * sends each client only what changed since a snapshot the client has
+ * acknowledged, the client keeps the same history to apply those changes to.
+ *
+ * A delta is a list of entries in ID order, each starting with a flags byte
+ * and the actor's ID. SPAWN entries carry the actor's type and every field,
+ * DESPAWN entries carry nothing more, and any other entry carries only the
+ * fields whose bits are set. A zero flags byte ends the list. With no
+ * baseline every actor is sent as a spawn, which makes a keyframe. How the
+ * identifiers, types and fields are written is left to an ActorCodec.
+ * @author Simon, Daniel
+ */
+public class Snapshot {
+
+    /** The number of ticks of snapshots kept by each end */
+    public static final int HISTORY = 32;
+    private static final int SPAWN = 1 << Actor.NUM_ELEMENTS;
+    private static final int DESPAWN = SPAWN << 1;
+    private static final int ALL_FIELDS = SPAWN - 1;
+    private static final int END = 0;
+    private int tick = -1;
+    private int count;
+    private int[] ids;
+    private int[] types;
+    private double[] states;   // Actor.NUM_ELEMENTS fields per actor
+    private final double[] actorBuffer;
+
+    /**
+     * Creates an empty snapshot belonging to no tick
+     */
+    public Snapshot() {
+        ids = new int[Game.POPCAP];
+        types = new int[Game.POPCAP];
+        states = new double[Game.POPCAP * Actor.NUM_ELEMENTS];
+        actorBuffer = new double[Actor.NUM_ELEMENTS];
+    }
+
+    /**
+     * @return The tick this snapshot was taken on, -1 if none
+     */
+    public int getTick() {
+        return tick;
+    }
+
+    /**
+     * Forgets the contents of this snapshot
+     */
+    public void clear() {
+        tick = -1;
+        count = 0;
+    }
+
+    /**
+     * Makes this snapshot a copy of another
+     * @param other The snapshot to copy
+     */
+    public void set(Snapshot other) {
+        clear();
+        for (int i = 0; i < other.count; i++) {
+            copy(other, i);
+        }
+        tick = other.tick;
+    }
+
+    /**
+     * @return The number of actors in the snapshot
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param index The actor's index, from 0 to size() - 1
+     * @return The actor's unique identifier
+     */
+    public int getID(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @param index The actor's index, from 0 to size() - 1
+     * @return The ordinal value of the actor's ActorType
+     */
+    public int getType(int index) {
+        return types[index];
+    }
+
+    /**
+     * Copies an actor's state in the form used by Actor.updateFromStream
+     * @param index The actor's index, from 0 to size() - 1
+     * @param buffer The buffer to fill, Actor.NUM_ELEMENTS long
+     */
+    public void getState(int index, double[] buffer) {
+        System.arraycopy(states, index * Actor.NUM_ELEMENTS, buffer, 0, Actor.NUM_ELEMENTS);
+    }
+
+    /**
+     * Records the state of the game as it will be received
+     * @param tick The tick being recorded
+     * @param actors All the current in-game actors
+     * @param codec The codec the snapshot will be sent with
+     */
+    public void capture(int tick, List<Actor> actors, ActorCodec codec) {
+        this.tick = tick;
+        count = 0;
+        for (int i = 0; i < actors.size(); i++) {
+            Actor actor = actors.get(i);
+            actor.toStream(actorBuffer);
+            for (int f = 0; f < Actor.NUM_ELEMENTS; f++) {
+                actorBuffer[f] = codec.quantise(f, actorBuffer[f]);
+            }
+            append(actor.getID(), actor.getActorType(), actorBuffer, 0);
+        }
+        sortByID();
+    }
+
+    /**
+     * Writes the changes from a baseline to this snapshot
+     * @param out The stream to write to
+     * @param baseline A snapshot the receiver holds, or null for a keyframe
+     * @param codec The codec this snapshot was captured for
+     * @throws IOException if the stream fails
+     */
+    public void writeDelta(DataOutputStream out, Snapshot baseline, ActorCodec codec) throws IOException {
+        int b = 0;
+        int baseCount = baseline == null ? 0 : baseline.count;
+        for (int i = 0; i < count; i++) {
+            // Anything in the baseline with a lower ID has gone
+            while (b < baseCount && baseline.ids[b] < ids[i]) {
+                out.writeByte(DESPAWN);
+                codec.writeID(out, baseline.ids[b++]);
+            }
+            if (b < baseCount && baseline.ids[b] == ids[i]) {
+                int changed = changedFields(i, baseline, b++);
+                if (changed != 0) {
+                    out.writeByte(changed);
+                    codec.writeID(out, ids[i]);
+                    writeFields(out, i, changed, codec);
+                }
+            } else {
+                out.writeByte(SPAWN);
+                codec.writeID(out, ids[i]);
+                codec.writeType(out, types[i]);
+                writeFields(out, i, ALL_FIELDS, codec);
+            }
+        }
+        while (b < baseCount) {
+            out.writeByte(DESPAWN);
+            codec.writeID(out, baseline.ids[b++]);
+        }
+        out.writeByte(END);
+    }
+
+    /**
+     * Replaces this snapshot with a baseline plus the changes read from a
+     * stream written by writeDelta
+     * @param in The stream to read from
+     * @param tick The tick the changes bring the baseline up to
+     * @param baseline The baseline the changes were written against, or
+     * null for a keyframe; must not be this snapshot
+     * @param codec The codec the changes were written with
+     * @throws IOException if the stream fails or does not match the baseline
+     */
+    public void readDelta(DataInputStream in, int tick, Snapshot baseline, ActorCodec codec)
+            throws IOException {
+        clear();
+        int b = 0;
+        int baseCount = baseline == null ? 0 : baseline.count;
+        int flags;
+        while ((flags = in.readUnsignedByte()) != END) {
+            int id = codec.readID(in);
+            while (b < baseCount && baseline.ids[b] < id) {
+                copy(baseline, b++);
+            }
+            if ((flags & SPAWN) != 0) {
+                int type = codec.readType(in);
+                readFields(in, ALL_FIELDS, codec);
+                append(id, type, actorBuffer, 0);
+                continue;
+            }
+            if (b == baseCount || baseline.ids[b] != id) {
+                throw new IOException("Actor " + id + " is not in the baseline");
+            }
+            if ((flags & DESPAWN) != 0) {
+                b++;
+            } else {
+                baseline.getState(b, actorBuffer);
+                readFields(in, flags, codec);
+                append(id, baseline.types[b++], actorBuffer, 0);
+            }
+        }
+        while (b < baseCount) {
+            copy(baseline, b++);
+        }
+        this.tick = tick;
+    }
+
+    /**
+     * @return The bits of the fields of actor i which differ from actor b
+     * of the baseline
+     */
+    private int changedFields(int i, Snapshot baseline, int b) {
+        int changed = 0;
+        for (int f = 0; f < Actor.NUM_ELEMENTS; f++) {
+            if (Double.doubleToLongBits(states[i * Actor.NUM_ELEMENTS + f])
+                    != Double.doubleToLongBits(baseline.states[b * Actor.NUM_ELEMENTS + f])) {
+                changed |= 1 << f;
+            }
+        }
+        return changed;
+    }
+
+    private void writeFields(DataOutputStream out, int i, int fields, ActorCodec codec)
+            throws IOException {
+        for (int f = 0; f < Actor.NUM_ELEMENTS; f++) {
+            if ((fields & (1 << f)) != 0) {
+                codec.writeField(out, f, states[i * Actor.NUM_ELEMENTS + f]);
+            }
+        }
+    }
+
+    /**
+     * Reads the given fields over the top of actorBuffer
+     */
+    private void readFields(DataInputStream in, int fields, ActorCodec codec) throws IOException {
+        for (int f = 0; f < Actor.NUM_ELEMENTS; f++) {
+            if ((fields & (1 << f)) != 0) {
+                actorBuffer[f] = codec.readField(in, f);
+            }
+        }
+    }
+
+    private void copy(Snapshot baseline, int b) {
+        append(baseline.ids[b], baseline.types[b], baseline.states, b * Actor.NUM_ELEMENTS);
+    }
+
+    /**
+     * Adds an actor to the end of the snapshot, growing it if necessary
+     */
+    private void append(int id, int type, double[] state, int offset) {
+        if (count == ids.length) {
+            int[] largerIDs = new int[2 * count];
+            int[] largerTypes = new int[2 * count];
+            double[] largerStates = new double[2 * count * Actor.NUM_ELEMENTS];
+            System.arraycopy(ids, 0, largerIDs, 0, count);
+            System.arraycopy(types, 0, largerTypes, 0, count);
+            System.arraycopy(states, 0, largerStates, 0, count * Actor.NUM_ELEMENTS);
+            ids = largerIDs;
+            types = largerTypes;
+            states = largerStates;
+        }
+        ids[count] = id;
+        types[count] = type;
+        System.arraycopy(state, offset, states, count * Actor.NUM_ELEMENTS, Actor.NUM_ELEMENTS);
+        count++;
+    }
+
+    /**
+     * Insertion sort by ID, new actors mostly have the highest IDs so the
+     * snapshot is nearly sorted already
+     */
+    private void sortByID() {
+        for (int i = 1; i < count; i++) {
+            int id = ids[i];
+            if (ids[i - 1] <= id) {
+                continue;
+            }
+            int type = types[i];
+            System.arraycopy(states, i * Actor.NUM_ELEMENTS, actorBuffer, 0, Actor.NUM_ELEMENTS);
+            int j = i;
+            while (j > 0 && ids[j - 1] > id) {
+                ids[j] = ids[j - 1];
+                types[j] = types[j - 1];
+                System.arraycopy(states, (j - 1) * Actor.NUM_ELEMENTS,
+                        states, j * Actor.NUM_ELEMENTS, Actor.NUM_ELEMENTS);
+                j--;
+            }
+            ids[j] = id;
+            types[j] = type;
+            System.arraycopy(actorBuffer, 0, states, j * Actor.NUM_ELEMENTS, Actor.NUM_ELEMENTS);
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package common;
 
-import java.awt.*;
+import java.nio.ByteBuffer;
 import javax.vecmath.Vector2d;
 
 /**
@@ -14,15 +14,22 @@ public abstract class Spacecraft extends Actor {
     // delta-V provided by one thrust command
     private static final double IMPULSE = 2.0;
 
+    // delta-V provided by one FORWARD command from a player
+    private static final double FORWARD_IMPULSE = 0.5;
+
     // Change in orientation provided by one rotate command
     private static final double TURN_INCREMENT = 0.3;
 
     private int timeTillCool;
     private static final int COOLDOWN_TIME = 5;
 
-    private int shields = 4;   // Number of hits the spacecraft can take
+    private static final int MAX_SHIELDS = 4;
+    private int shields = MAX_SHIELDS;   // Number of hits the spacecraft can take
     private static final int SHIP_CRASH_EFFECT = 1;
 
+    /** The number of bytes writeHandoff writes */
+    public static final int HANDOFF_SIZE = 4 + 5 * 8 + 4 + 4;
+
 
     /**
      * Launch a missile
@@ -79,6 +86,69 @@ public abstract class Spacecraft extends Actor {
         super(pos, vel);
     }
 
+    /**
+     * Writes everything another server needs to carry on with this
+     * spacecraft, for when its player hyperspaces there: its ID, position,
+     * velocity and heading as doubles, then its shields, 0 if it has been
+     * destroyed, and how long its missile launcher has left to cool down
+     * @param out The buffer to write to, with at least HANDOFF_SIZE bytes remaining
+     */
+    public void writeHandoff(ByteBuffer out) {
+        Vector2d velocity = getVelocity();
+        out.putInt(getID());
+        out.putDouble(getX());
+        out.putDouble(getY());
+        out.putDouble(velocity.x);
+        out.putDouble(velocity.y);
+        out.putDouble(getHeading());
+        out.putInt(isDead() ? 0 : shields);
+        out.putInt(timeTillCool);
+    }
+
+    /**
+     * Recreates a spacecraft written by writeHandoff. Whatever was written,
+     * the spacecraft is somewhere in the space, no faster and no better
+     * shielded than a new one, and its launcher no cooler than when it fires.
+     * @param in The buffer to read from, with at least HANDOFF_SIZE bytes remaining
+     * @return The spacecraft, as it was on the server it came from, and
+     * so already destroyed if it had been there
+     */
+    public static Spacecraft readHandoff(ByteBuffer in) {
+        int id = in.getInt();
+        double x = inRange(in.getDouble(), Game.APPSIZE.getWidth());
+        double y = inRange(in.getDouble(), Game.APPSIZE.getHeight());
+        double vx = finite(in.getDouble());
+        double vy = finite(in.getDouble());
+        double heading = Math.IEEEremainder(finite(in.getDouble()), 2 * Math.PI);
+        Spacecraft spacecraft = new Wedge(id, new Vector2d(x, y), new Vector2d());
+        Vector2d velocity = new Vector2d(vx, vy);
+        velocity.clamp(-spacecraft.getMaxVel(), spacecraft.getMaxVel());
+        spacecraft.setVelocity(velocity);
+        // Set absolutely, as a new spacecraft does not start at heading 0
+        spacecraft.rotate(heading - spacecraft.getHeading());
+        spacecraft.shields = Math.max(0, Math.min(in.getInt(), MAX_SHIELDS));
+        spacecraft.timeTillCool = Math.max(-1, Math.min(in.getInt(), COOLDOWN_TIME));
+        if (spacecraft.shields < 1) {
+            spacecraft.destroy();
+        }
+        return spacecraft;
+    }
+
+    /**
+     * @return value, or 0 if it is not a finite number
+     */
+    private static double finite(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? 0 : value;
+    }
+
+    /**
+     * @return value wrapped into [0, size), 0 if it is not a finite number
+     */
+    private static double inRange(double value, double size) {
+        double wrapped = finite(value) % size;
+        return wrapped < 0 ? wrapped + size : wrapped;
+    }
+
     /**
      * Damaging a spacecraft reduces its shield levels. When shield levels
      * reach 0 the spacecraft is destroyed.
@@ -99,6 +169,28 @@ public abstract class Spacecraft extends Actor {
         accelerate(IMPULSE);
     }
 
+    /**
+     * Applies one of a player's steering commands. The server steers players'
+     * spacecraft with this and clients predict their own with it, so both
+     * move a spacecraft the same way.
+     * @param command FORWARD, TURN_CW or TURN_CCW
+     */
+    public void steer(Command command) {
+        switch (command) {
+            case FORWARD:
+                accelerate(FORWARD_IMPULSE);
+                break;
+            case TURN_CCW:
+                counterClockwise();
+                break;
+            case TURN_CW:
+                clockwise();
+                break;
+            default:
+                throw new IllegalArgumentException(command + " does not steer");
+        }
+    }
+
     /**
      * Rotate the spacecraft clockwise.
      */
@@ -126,29 +218,18 @@ public abstract class Spacecraft extends Actor {
      * In this case it's simply a spacecraft with a long thin fuselage.
      */
     public static class Needle extends Spacecraft {
-        private static Polygon shape = new Polygon(new int[] {0, 4, 0, 20},
-                                    new int[] {6, 10, 14, 10},
-                                    4);
         public Needle(Vector2d position, Vector2d velocity) {
             super(position, velocity);
-            setSprite();
         }
 
         Needle(double[] buffer) {
             super(0, buffer);
-            setSprite();
         }
 
         @Override
         public int getActorType() {
             return ActorType.NEEDLE.ordinal();
         }
-
-        private void setSprite() {
-
-            spriteGraphics.setColor(Color.decode("0xAFD775"));
-            spriteGraphics.fillPolygon(shape);
-        }
     }
 
     /**
@@ -156,23 +237,14 @@ public abstract class Spacecraft extends Actor {
      * In this case it's simply a spacecraft with a wide triangular fuselage.
      */
     public static class Wedge extends Spacecraft {
-        private static Polygon shape = new Polygon(new int[] {3, 15, 3, 0},
-                                    new int[] {3, 10, 17, 10},
-                                    4);
         public Wedge(int id, Vector2d position, Vector2d velocity) {
             super(id, position, velocity);
             colour = Math.abs((double)id / Integer.MAX_VALUE);
-            setSprite();
         }
 
 
         Wedge(int id, double[] buffer) {
             super(id, buffer);
-            setSprite();
-        }
-
-        private void setSprite() {
-            spriteGraphics.fillPolygon(shape);
         }
 
         @Override
@@ -1,6 +1,5 @@
 package common;
 
-import java.awt.*;
 import javax.vecmath.Vector2d;
 
 /**
@@ -13,11 +12,7 @@ public class Star extends Actor  {
 
     private static final double DEFAULT_G = 1000.0;
     private static final int STAR_CRASH_EFFECT = 1000;
-    private static Polygon shape = new Polygon(new int[] {10, 20, 11, 10, 9, 0, 10,
-                                                          10, 9, 5, 15, 11, 5, 15},
-                                               new int[] {10, 10, 11, 20, 9, 10, 10,
-                                                          0, 11, 5, 15, 9, 15, 5},
-                                               14);
+
     /**
      * Place a star at the specified location, with a default gravitational
      * constant.
@@ -33,10 +28,6 @@ public class Star extends Actor  {
      */
     Star(double[] buffer) {
         super(0, buffer);
-        // Define a sprite for the star. This is basically just a whole
-        // mess of lines.
-        spriteGraphics.setColor(Color.YELLOW);
-        spriteGraphics.drawPolygon(shape);
     }
 
     /**
@@ -76,17 +67,13 @@ public class Star extends Actor  {
     }
 
     /**
-     * Rather than using relative masses this methods simply skips gravitation
+     * Rather than using relative masses stars simply skip gravitation
      * towards non-stars
-     * @param other The other actor, only acted upon if it is a star as well
+     * @param other The other actor, only felt if it is a star as well
      */
     @Override
-    public void gravitate(Actor other) {
-        Vector2d velocity = this.getVelocity();
-        super.gravitate(other);
-        if (!(other instanceof  Star)) {
-            this.setVelocity(velocity);
-        }
+    public boolean isAttractedBy(Actor other) {
+        return other instanceof Star;
     }
 
     /**
@@ -72,21 +72,52 @@ public class ToroidalCoordinate2D {
     public final void translate(Vector2d delta) {
         pos.add(delta);
 
-        // Check and correct for x wraparound
-        if (pos.x < 0) {
-            pos = new Vector2d(dim.getWidth(), pos.y);
-        }
-        else if (pos.x > dim.getWidth()) {
-            pos = new Vector2d(0.0, pos.y);
-        }
+        // Check and correct for wraparound
+        pos.x = wrap(pos.x, dim.getWidth());
+        pos.y = wrap(pos.y, dim.getHeight());
+    }
+
+    /**
+     * Moves this point to the specified coordinates, wrapping them
+     * into the space.
+     * @param x the new x coordinate
+     * @param y the new y coordinate
+     */
+    public final void setLocation(double x, double y) {
+        pos.x = wrap(x, dim.getWidth());
+        pos.y = wrap(y, dim.getHeight());
+    }
 
-        // Check and correct for y wraparound
-        if (pos.y < 0) {
-            pos = new Vector2d(pos.x, dim.getHeight());
+    /**
+     * Wraps a single coordinate that has just been translated. Coordinates
+     * that have passed one edge of the space reappear at the opposite edge.
+     * @param value The translated coordinate
+     * @param size The size of the space along the coordinate's axis
+     * @return The coordinate within the range 0 <= value <= size
+     */
+    public static double wrap(double value, double size) {
+        if (value < 0) {
+            return size;
+        } else if (value > size) {
+            return 0.0;
         }
-        else if (pos.y > dim.getHeight()) {
-            pos = new Vector2d(pos.x, 0.0);
+        return value;
+    }
+
+    /**
+     * Finds the shortest of the displacements between two points which are
+     * equivalent on the torus, that towards the nearest image of the second.
+     * @param delta The difference between the two coordinates
+     * @param size The size of the space along the coordinate's axis
+     * @return The displacement within the range -size/2 <= delta <= size/2
+     */
+    public static double nearestImage(double delta, double size) {
+        if (delta > size / 2) {
+            return delta - size;
+        } else if (delta < -size / 2) {
+            return delta + size;
         }
+        return delta;
     }
 
     /**
@@ -5,6 +5,7 @@ import common.Command;
 import common.Spacecraft;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.List;
 import javax.vecmath.Vector2d;
 
 /**
@@ -19,7 +20,9 @@ public class AI extends Spacecraft.Needle {
     private static final double AI_MAX_VELOCITY = 2;
     private static final double SLOWDOWN_ANGLE_THRESH = Math.PI / 6;
     private static final double PROXIMITY_THRESH = 100;
-    private Vector2d distanceToThreat = new Vector2d();
+    private final Vector2d distanceToThreat = new Vector2d();
+    private final Vector2d velocity = new Vector2d();
+    private final Collection<Command> commands = EnumSet.noneOf(Command.class);
 
     /**
      * Creates an AI spacecraft which is a Needle with the ability to move itself
@@ -34,19 +37,19 @@ public class AI extends Spacecraft.Needle {
      * Tracks a player controlled spacecraft and fires if facing (roughly) towards it
      * //TODO: support multiple wedges
      * @param actors The actor list to scan for players
-     * @return An appropriate command set
+     * @return An appropriate command set, which is reused by the next update
      */
-    public Collection<Command> update(Collection<Actor> actors) {
-        Collection<Command> commands = EnumSet.noneOf(Command.class);
+    public Collection<Command> update(List<Actor> actors) {
+        commands.clear();
         Command avoidCommand = avoidCollisions(actors);
         if (avoidCommand != null) {
             commands.add(avoidCommand);
         }
         if (commands.isEmpty()) {
-            if (velocity.length() > AI_MAX_VELOCITY) {
+            if (getVelocity(velocity).length() > AI_MAX_VELOCITY) {
                 commands.add(slowDown());
             } else {
-                commands = engage(actors);
+                engage(actors);
             }
         }
         return commands;
@@ -58,8 +61,9 @@ public class AI extends Spacecraft.Needle {
      * @param actors The list of actors which will be avoided
      * @return A collection of dodging commands or null if
      */
-    private Command avoidCollisions(Collection<Actor> actors) {
-        for (Actor threat : actors) {
+    private Command avoidCollisions(List<Actor> actors) {
+        for (int i = 0; i < actors.size(); i++) {
+            Actor threat = actors.get(i);
             if ((threat.getActorType() == Actor.ActorType.STAR.ordinal()
                     || (threat.getActorType() == Actor.ActorType.WEDGE.ordinal()))
                     && collisionImminent(threat)) {
@@ -75,8 +79,7 @@ public class AI extends Spacecraft.Needle {
      * @return If the ai is in danger from the threat
      */
     private boolean collisionImminent(Actor threat) {
-        distanceToThreat = new Vector2d();
-        distanceToThreat.sub(threat.getPosition(), getPosition());
+        distanceToThreat.set(threat.getX() - getX(), threat.getY() - getY());
         if (distanceToThreat.length() < PROXIMITY_THRESH) {
             return true;
         }
@@ -88,7 +91,7 @@ public class AI extends Spacecraft.Needle {
      * @return A movement command
      */
     private Command dodge() {
-        double angleFromCrash = Actor.angleWraparound(angle - Math.atan2(distanceToThreat.y, distanceToThreat.x)); //ai.getVelocity().angle(new Vector2d(1, 0)));
+        double angleFromCrash = Actor.angleWraparound(getHeading() - Math.atan2(distanceToThreat.y, distanceToThreat.x)); //ai.getVelocity().angle(new Vector2d(1, 0)));
         if (angleFromCrash > 0) {
             if (angleFromCrash < Math.PI / 2) {
                 return Command.TURN_CW;
@@ -110,7 +113,8 @@ public class AI extends Spacecraft.Needle {
      * @return The movement command to effect the slowdown
      */
     private Command slowDown() {
-        double angleFromTrajectory = angleWraparound(angle - Math.atan2(velocity.y, velocity.x));
+        getVelocity(velocity);
+        double angleFromTrajectory = angleWraparound(getHeading() - Math.atan2(velocity.y, velocity.x));
         if (angleFromTrajectory > 0) {
             if (angleFromTrajectory < Math.PI - SLOWDOWN_ANGLE_THRESH) {
                 return Command.TURN_CW;
@@ -127,16 +131,16 @@ public class AI extends Spacecraft.Needle {
     }
 
     /**
-     * Engages with any available wedges
+     * Engages with any available wedges, adding shooting and/or turning
+     * commands to the command set
      * @param actors Actors, which might include wedges
-     * @return Shooting and/or turning commands
      */
-    private Collection<Command> engage(Collection<Actor> actors) {
-        Collection<Command> commands = EnumSet.noneOf(Command.class);
+    private void engage(List<Actor> actors) {
         searchLoop:
-        for (Actor target : actors) {
+        for (int i = 0; i < actors.size(); i++) {
+            Actor target = actors.get(i);
             if (target.getActorType() == Actor.ActorType.WEDGE.ordinal()) {
-                double angleDiff = getHeading() - Math.atan2(target.getPosition().y - getPosition().y, target.getPosition().x - getPosition().x);
+                double angleDiff = getHeading() - Math.atan2(target.getY() - getY(), target.getX() - getX());
                 angleDiff %= Math.PI * 2;
                 if (angleDiff > Math.PI) {
                     angleDiff -= 2 * Math.PI;
@@ -150,6 +154,5 @@ public class AI extends Spacecraft.Needle {
                 }
             }
         }
-        return commands;
     }
 }
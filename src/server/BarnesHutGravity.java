@@ -0,0 +1,339 @@
+package server;
+
+import common.Actor;
+import common.ActorStore;
+import common.Game;
+import common.ToroidalCoordinate2D;
+
+/**
+ * An approximate GravitySolver which groups distant actors together using a
+ * Barnes-Hut quadtree, costing O(n log n) rather than O(n^2).
+ *
+ * A tree node is treated as a single body at its centre of mass when its size
+ * divided by its distance is less than the opening angle, smaller angles are
+ * more accurate and an angle of zero sums every pull exactly, as
+ * PairwiseGravity does but for the order of the sums. As there, distances are
+ * measured to the nearest periodic image on the torus, so actors pull on each
+ * other across the edges of the space, and each actor's velocity is clamped
+ * once all the pulls on it are summed. The distance tested is to the nearest
+ * edge of the node's box rather than to its centre of mass, so a node is never
+ * summed as one far mass by a body close to any part of it, however large the
+ * opening angle, even across the edges of the space. Stars only respond to
+ * other stars and since there are few of them their pull on each other is
+ * always summed exactly, which keeps binary star orbits stable.
+ *
+ * The tree is built once per step, after which any number of threads may
+ * walk it at the same time, each with its own stack.
+ * @author Simon, Daniel
+ */
+class BarnesHutGravity implements GravitySolver {
+
+    // Deeper than this and bodies share a leaf, which only happens when
+    // actors are practically on top of each other
+    private static final int MAX_DEPTH = 24;
+    private static final int CHILDREN = 4;
+    private static final int STAR = Actor.ActorType.STAR.ordinal();
+    private final double theta2;
+    private final double width;
+    private final double height;
+    // Per body state, indexed by store slot
+    private double[] x;
+    private double[] y;
+    private double[] mass;
+    private boolean[] star;
+    private int[] order;   // Body indices grouped by tree node
+    private int[] rank;    // Position of each body in order
+    // Per node state, nodes own the range [first, last) of order
+    private double[] nodeSize;
+    private double[] nodeMass;
+    private double[] comX;
+    private double[] comY;
+    private double[] centreX;   // Of the node's box
+    private double[] centreY;
+    private double[] halfWidth;
+    private double[] halfHeight;
+    private int[] first;
+    private int[] last;
+    private int[] child;   // CHILDREN entries per node, -1 if absent
+    private int numNodes;
+    private int numBodies;
+    private final ThreadLocal<Walk> walks = new ThreadLocal<Walk>() {
+
+        @Override
+        protected Walk initialValue() {
+            return new Walk();
+        }
+    };
+
+    /**
+     * Creates a new Barnes-Hut solver
+     * @param openingAngle The size to distance ratio below which a node is
+     * not opened
+     */
+    BarnesHutGravity(double openingAngle) {
+        theta2 = openingAngle * openingAngle;
+        width = Game.APPSIZE.getWidth();
+        height = Game.APPSIZE.getHeight();
+        allocateBodies(Game.POPCAP);
+        allocateNodes(2 * Game.POPCAP);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void prepare(ActorStore actors) {
+        numBodies = actors.size();
+        if (order.length < numBodies) {
+            allocateBodies(2 * numBodies);
+        }
+        x = actors.positionX();
+        y = actors.positionY();
+        mass = actors.gravityConstants();
+        int[] type = actors.types();
+        for (int i = 0; i < numBodies; i++) {
+            star[i] = type[i] == STAR;
+            order[i] = i;
+        }
+
+        numNodes = 0;
+        build(0, numBodies, 0, 0, width, height, 0);
+        for (int i = 0; i < numBodies; i++) {
+            rank[order[i]] = i;
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void accelerate(ActorStore actors, int from, int to) {
+        // Velocities are not read by the tree walk, so each acceleration can
+        // be applied as soon as it is known
+        Walk walk = walks.get();
+        for (int i = from; i < to; i++) {
+            if (star[i]) {
+                accelerationFromStars(i, walk);
+            } else {
+                accelerationFromTree(i, walk);
+            }
+            actors.accelerate(i, walk.accelerationX, walk.accelerationY);
+        }
+    }
+
+    /**
+     * Sums the exact pull of every other star on a star
+     */
+    private void accelerationFromStars(int body, Walk walk) {
+        walk.accelerationX = 0;
+        walk.accelerationY = 0;
+        for (int j = 0; j < numBodies; j++) {
+            if (j != body && star[j]) {
+                addPull(body, x[j], y[j], mass[j], walk);
+            }
+        }
+    }
+
+    /**
+     * Walks the tree to approximate the pull of every other actor on a body
+     */
+    private void accelerationFromTree(int body, Walk walk) {
+        walk.accelerationX = 0;
+        walk.accelerationY = 0;
+        if (numNodes == 0) {
+            return;
+        }
+        int[] stack = walk.stack;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            boolean containsBody = first[node] <= rank[body] && rank[body] < last[node];
+            if (isLeaf(node)) {
+                // Leaves are always summed exactly
+                for (int k = first[node]; k < last[node]; k++) {
+                    int j = order[k];
+                    if (j != body) {
+                        addPull(body, x[j], y[j], mass[j], walk);
+                    }
+                }
+            } else if (!containsBody && isFar(body, node)) {
+                addPull(body, comX[node], comY[node], nodeMass[node], walk);
+            } else {
+                for (int c = 0; c < CHILDREN; c++) {
+                    if (child[CHILDREN * node + c] >= 0) {
+                        stack[top++] = child[CHILDREN * node + c];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the opening angle criterion to a node, measuring to the
+     * nearest image of its box
+     */
+    private boolean isFar(int body, int node) {
+        double dx = Math.max(0, Math.abs(ToroidalCoordinate2D.nearestImage(centreX[node] - x[body], width)) - halfWidth[node]);
+        double dy = Math.max(0, Math.abs(ToroidalCoordinate2D.nearestImage(centreY[node] - y[body], height)) - halfHeight[node]);
+        return nodeSize[node] * nodeSize[node] < theta2 * (dx * dx + dy * dy);
+    }
+
+    /**
+     * Adds the acceleration a = GM/r^2 towards a point mass at (px, py)
+     */
+    private void addPull(int body, double px, double py, double pointMass, Walk walk) {
+        double dx = ToroidalCoordinate2D.nearestImage(px - x[body], width);
+        double dy = ToroidalCoordinate2D.nearestImage(py - y[body], height);
+        double r2 = dx * dx + dy * dy;
+        if (r2 > 0) {
+            double scale = pointMass / (r2 * Math.sqrt(r2));
+            walk.accelerationX += scale * dx;
+            walk.accelerationY += scale * dy;
+        }
+    }
+
+    /**
+     * Recursively builds the subtree covering a rectangle of the space
+     * @return The index of the new node
+     */
+    private int build(int start, int end, double minX, double minY, double w, double h, int depth) {
+        if (numNodes == first.length) {
+            allocateNodes(2 * first.length);
+        }
+        int node = numNodes++;
+        first[node] = start;
+        last[node] = end;
+        nodeSize[node] = Math.max(w, h);
+        centreX[node] = minX + w / 2;
+        centreY[node] = minY + h / 2;
+        halfWidth[node] = w / 2;
+        halfHeight[node] = h / 2;
+        for (int c = 0; c < CHILDREN; c++) {
+            child[CHILDREN * node + c] = -1;
+        }
+
+        double m = 0;
+        double mx = 0;
+        double my = 0;
+        for (int k = start; k < end; k++) {
+            int j = order[k];
+            m += mass[j];
+            mx += mass[j] * x[j];
+            my += mass[j] * y[j];
+        }
+        nodeMass[node] = m;
+        comX[node] = m > 0 ? mx / m : minX + w / 2;
+        comY[node] = m > 0 ? my / m : minY + h / 2;
+
+        if (end - start > 1 && depth < MAX_DEPTH) {
+            double midX = minX + w / 2;
+            double midY = minY + h / 2;
+            // Partition into left and right, then each half into top and bottom
+            int split = partition(start, end, true, midX);
+            int lowerSplit = partition(start, split, false, midY);
+            int upperSplit = partition(split, end, false, midY);
+            addChild(node, 0, start, lowerSplit, minX, minY, w / 2, h / 2, depth);
+            addChild(node, 1, lowerSplit, split, minX, midY, w / 2, h / 2, depth);
+            addChild(node, 2, split, upperSplit, midX, minY, w / 2, h / 2, depth);
+            addChild(node, 3, upperSplit, end, midX, midY, w / 2, h / 2, depth);
+        }
+        return node;
+    }
+
+    private void addChild(int node, int quadrant, int start, int end,
+            double minX, double minY, double w, double h, int depth) {
+        if (end > start) {
+            int newChild = build(start, end, minX, minY, w, h, depth + 1);
+            child[CHILDREN * node + quadrant] = newChild;
+        }
+    }
+
+    /**
+     * Reorders a range of bodies so that those below the split come first
+     * @return The index of the first body at or above the split
+     */
+    private int partition(int start, int end, boolean alongX, double split) {
+        int low = start;
+        int high = end - 1;
+        while (low <= high) {
+            double value = alongX ? x[order[low]] : y[order[low]];
+            if (value < split) {
+                low++;
+            } else {
+                int temp = order[low];
+                order[low] = order[high];
+                order[high--] = temp;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return true if the node has no children
+     */
+    private boolean isLeaf(int node) {
+        for (int c = 0; c < CHILDREN; c++) {
+            if (child[CHILDREN * node + c] >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void allocateBodies(int capacity) {
+        star = new boolean[capacity];
+        order = new int[capacity];
+        rank = new int[capacity];
+    }
+
+    private void allocateNodes(int capacity) {
+        double[] oldSize = nodeSize;
+        double[] oldMass = nodeMass;
+        double[] oldComX = comX;
+        double[] oldComY = comY;
+        double[] oldCentreX = centreX;
+        double[] oldCentreY = centreY;
+        double[] oldHalfWidth = halfWidth;
+        double[] oldHalfHeight = halfHeight;
+        int[] oldFirst = first;
+        int[] oldLast = last;
+        int[] oldChild = child;
+        nodeSize = new double[capacity];
+        nodeMass = new double[capacity];
+        comX = new double[capacity];
+        comY = new double[capacity];
+        centreX = new double[capacity];
+        centreY = new double[capacity];
+        halfWidth = new double[capacity];
+        halfHeight = new double[capacity];
+        first = new int[capacity];
+        last = new int[capacity];
+        child = new int[CHILDREN * capacity];
+        if (oldFirst != null) {
+            // Nodes are still being built when the pool runs out
+            System.arraycopy(oldSize, 0, nodeSize, 0, oldSize.length);
+            System.arraycopy(oldMass, 0, nodeMass, 0, oldMass.length);
+            System.arraycopy(oldComX, 0, comX, 0, oldComX.length);
+            System.arraycopy(oldComY, 0, comY, 0, oldComY.length);
+            System.arraycopy(oldCentreX, 0, centreX, 0, oldCentreX.length);
+            System.arraycopy(oldCentreY, 0, centreY, 0, oldCentreY.length);
+            System.arraycopy(oldHalfWidth, 0, halfWidth, 0, oldHalfWidth.length);
+            System.arraycopy(oldHalfHeight, 0, halfHeight, 0, oldHalfHeight.length);
+            System.arraycopy(oldFirst, 0, first, 0, oldFirst.length);
+            System.arraycopy(oldLast, 0, last, 0, oldLast.length);
+            System.arraycopy(oldChild, 0, child, 0, oldChild.length);
+        }
+    }
+
+    /**
+     * The scratch space of one thread walking the tree
+     */
+    private static class Walk {
+
+        private final int[] stack = new int[CHILDREN * MAX_DEPTH + 1];
+        // Acceleration summed for the current body
+        private double accelerationX;
+        private double accelerationY;
+    }
+}
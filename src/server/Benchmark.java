@@ -0,0 +1,253 @@
+package server;
+
+import common.ActorCodec;
+import common.Command;
+import common.Connection;
+import common.FrameCompressor;
+import common.Game;
+import common.Missile;
+import common.Spacecraft;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Runs the game engine headless, with a number of spacecraft turning,
+ * thrusting and firing as fast as they can, and reports what each tick costs
+ * along with the size of the snapshots each ActorCodec would send to clients,
+ * and what compressing them at the fastest and the default deflate levels
+ * saves and costs.
+ * It then checks that GameEngine.stepTime allocates nothing once warmed up,
+ * exiting with a failure status if it does.
+ * Not part of the game, run it with
+ *   java -cp build/classes:lib/vecmath-1.3.1.jar server.Benchmark [ships] [ticks]
+ * @author Simon, Daniel
+ */
+final class Benchmark {
+
+    private static final int DEFAULT_SHIPS = 20;
+    private static final int DEFAULT_TICKS = 2000;
+    private static final long SEED = 42;
+    private static final int STEADY_WINDOWS = 3;
+    private static final int[] LEVELS = {Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION};
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Benchmark() {}
+
+    /**
+     * Benchmark entry point
+     * @param args Optionally the number of ships and the number of ticks
+     */
+    public static void main(String[] args) {
+        int numShips = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SHIPS;
+        int numTicks = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TICKS;
+        measureTicks(numShips, numTicks);
+        if (!checkSteadyState(numShips, numTicks)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reports the average time and garbage of a tick where every ship fires
+     */
+    private static void measureTicks(int numShips, int numTicks) {
+        Game.rand.setSeed(SEED);
+        GameEngine engine = new GameEngine();
+        List<Spacecraft> ships = new ArrayList<Spacecraft>(numShips);
+        for (int i = 0; i < numShips; i++) {
+            ships.add(engine.addSpaceship(i + 1));
+        }
+
+        // The first half of the run warms up the JIT
+        SnapshotEncoder[] snapshots = new SnapshotEncoder[ActorCodec.VERSIONS.length];
+        for (int i = 0; i < snapshots.length; i++) {
+            snapshots[i] = new SnapshotEncoder(ActorCodec.VERSIONS[i], null);
+        }
+        List<Connection.Client> noPlayers = Collections.emptyList();
+        long bytes = 0;
+        long nanos = 0;
+        long[] keyframeBytes = new long[snapshots.length];
+        long[] deltaBytes = new long[snapshots.length];
+        // A compressed stream of deltas for each codec at each level
+        FrameCompressor[][] compressors = new FrameCompressor[snapshots.length][LEVELS.length];
+        for (int i = 0; i < snapshots.length; i++) {
+            for (int j = 0; j < LEVELS.length; j++) {
+                compressors[i][j] = new FrameCompressor(LEVELS[j]);
+            }
+        }
+        long[][] compressedBytes = new long[snapshots.length][LEVELS.length];
+        long[][] compressNanos = new long[snapshots.length][LEVELS.length];
+        ByteBuffer compressed = ByteBuffer.allocate(8192);
+        int measured = 0;
+        for (int tick = 0; tick < numTicks; tick++) {
+            long startBytes = allocatedBytes();
+            long startNanos = System.nanoTime();
+            step(engine, ships, tick);
+            long tickNanos = System.nanoTime() - startNanos;
+            long tickBytes = allocatedBytes() - startBytes;
+            for (SnapshotEncoder snapshot : snapshots) {
+                snapshot.encode(engine.actors.asList(), noPlayers);
+            }
+            if (tick >= numTicks / 2) {
+                bytes += tickBytes;
+                nanos += tickNanos;
+                // A client that acknowledged the previous tick gets a delta
+                for (int i = 0; i < snapshots.length; i++) {
+                    keyframeBytes[i] += snapshots[i].getFrame(-1).remaining();
+                    ByteBuffer delta = snapshots[i].getFrame(snapshots[i].getTick() - 1);
+                    deltaBytes[i] += delta.remaining();
+                    for (int j = 0; j < LEVELS.length; j++) {
+                        compressed.clear();
+                        long compressStart = System.nanoTime();
+                        compressed = compressors[i][j].compress(delta.array(), delta.remaining(), compressed);
+                        compressNanos[i][j] += System.nanoTime() - compressStart;
+                        compressedBytes[i][j] += compressed.position();
+                    }
+                }
+                measured++;
+            } else {
+                // Keep the streams going through the warm up as well
+                for (int i = 0; i < snapshots.length; i++) {
+                    ByteBuffer delta = snapshots[i].getFrame(snapshots[i].getTick() - 1);
+                    for (int j = 0; j < LEVELS.length; j++) {
+                        compressed.clear();
+                        compressed = compressors[i][j].compress(delta.array(), delta.remaining(), compressed);
+                    }
+                }
+            }
+        }
+
+        System.out.println(numShips + " ships, " + measured + " ticks measured, "
+                + engine.actors.size() + " actors at end");
+        System.out.println("  bytes allocated per tick: " + bytes / measured);
+        System.out.println("  microseconds per tick:    " + nanos / measured / 1000);
+        for (int i = 0; i < snapshots.length; i++) {
+            String codec = ActorCodec.VERSIONS[i].getClass().getSimpleName();
+            System.out.println("  " + codec + " snapshot bytes per tick: keyframe "
+                    + keyframeBytes[i] / measured + ", delta " + deltaBytes[i] / measured);
+            for (int j = 0; j < LEVELS.length; j++) {
+                System.out.println("    deflate level " + LEVELS[j] + ": delta "
+                        + compressedBytes[i][j] / measured + " bytes, "
+                        + compressNanos[i][j] / measured / 1000.0 + " microseconds per client");
+            }
+        }
+    }
+
+    /**
+     * Lets the ships drift and checks that stepping the engine allocates
+     * nothing. Crashed ships are replaced between ticks to keep the numbers
+     * up, and ticks where the AI respawns are allowed to allocate it.
+     * The thread which asks for a method to be compiled at the top tier is
+     * charged once for the constants the JIT resolves for it, and with more
+     * than one physics thread which thread asks, and when, is down to timing.
+     * So a measured window which allocated is followed by another, up to
+     * STEADY_WINDOWS, and only garbage in every one of them fails the check.
+     * @return true if a window created no garbage
+     */
+    private static boolean checkSteadyState(int numShips, int numTicks) {
+        Game.rand.setSeed(SEED);
+        GameEngine engine = new GameEngine();
+        List<Spacecraft> ships = new ArrayList<Spacecraft>(numShips);
+        for (int i = 0; i < numShips; i++) {
+            ships.add(engine.addSpaceship(i + 1));
+        }
+
+        // The first half of the run warms up the JIT
+        drift(engine, ships, numTicks / 2);
+        int window = numTicks - numTicks / 2;
+        StringBuilder windows = new StringBuilder();
+        long garbage = -1;
+        for (int i = 0; i < STEADY_WINDOWS && garbage != 0; i++) {
+            garbage = drift(engine, ships, window);
+            windows.append(i == 0 ? "" : ", then ").append(garbage);
+        }
+
+        System.out.println("steady state stepTime with " + engine.actors.size() + " actors");
+        System.out.println("  bytes allocated over " + window + " ticks: "
+                + windows + (garbage == 0 ? " (pass)" : " (FAIL)"));
+        return garbage == 0;
+    }
+
+    /**
+     * Steps the engine, replacing crashed ships between ticks
+     * @return The bytes allocated by stepTime, but for ticks where the AI
+     * respawned
+     */
+    private static long drift(GameEngine engine, List<Spacecraft> ships, int numTicks) {
+        long garbage = 0;
+        for (int tick = 0; tick < numTicks; tick++) {
+            for (int i = 0; i < ships.size(); i++) {
+                if (ships.get(i).isDead()) {
+                    ships.set(i, engine.addSpaceship(i + 1));
+                }
+            }
+            AI ai = engine.aiActor;
+            long startBytes = allocatedBytes();
+            engine.stepTime();
+            long tickBytes = allocatedBytes() - startBytes;
+            if (engine.aiActor == ai) {
+                garbage += tickBytes;
+            }
+        }
+        return garbage;
+    }
+
+    /**
+     * @return The number of bytes ever allocated by the current thread
+     */
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Runs one server tick without any networking
+     */
+    private static void step(GameEngine engine, List<Spacecraft> ships, int tick) {
+        for (int i = 0; i < ships.size(); i++) {
+            Spacecraft ship = ships.get(i);
+            if (ship.isDead()) {
+                ships.set(i, ship = engine.addSpaceship(i + 1));
+            }
+            if ((tick + i) % 3 == 0) {
+                apply(engine, ship, Command.TURN_CW);
+            }
+            apply(engine, ship, Command.FORWARD);
+            apply(engine, ship, Command.FIRE);
+        }
+        if (!engine.aiActor.isDead()) {
+            for (Command command : engine.aiActor.update(engine.actors.asList())) {
+                apply(engine, engine.aiActor, command);
+            }
+        }
+        engine.stepTime();
+    }
+
+    /**
+     * Applies a command in the same way as Server.handleCommand
+     */
+    private static void apply(GameEngine engine, Spacecraft ship, Command command) {
+        switch (command) {
+            case FORWARD:
+                ship.accelerate(0.5);
+                break;
+            case TURN_CCW:
+                ship.counterClockwise();
+                break;
+            case TURN_CW:
+                ship.clockwise();
+                break;
+            case FIRE:
+                Missile missile = ship.fire();
+                if (missile != null) {
+                    engine.actors.add(missile);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import common.Command;
+import common.Connection;
+import common.Game;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts a headless server and connects a number of synthetic clients to it,
+ * each of which joins the game and acknowledges every snapshot it receives
+ * (their ships are left to drift, so the load is on the networking). Reports
+ * how many snapshots a second the clients received, which stays at the tick
+ * rate for as long as the server keeps up, and how much later than the
+ * earliest each client's snapshots arrived compared to their ticks, which
+ * grows as the server's sockets fall behind.
+ * Not part of the game, run it with
+ *   java -cp build/classes:lib/vecmath-1.3.1.jar server.ClientLoad [clients] [seconds]
+ * @author Simon, Daniel
+ */
+final class ClientLoad {
+
+    private static final int DEFAULT_CLIENTS = 100;
+    private static final int DEFAULT_SECONDS = 10;
+
+    private ClientLoad() {}
+
+    /**
+     * Load test entry point
+     * @param args Optionally the number of clients and the seconds to run for
+     * @throws Exception if the server cannot be started
+     */
+    public static void main(String[] args) throws Exception {
+        int numClients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+        int port = Game.MIN_PORT + Game.rand.nextInt(Game.MAX_PORT - Game.MIN_PORT);
+        Server.start(port, true);
+
+        // Give every client a second to connect before counting
+        long start = System.currentTimeMillis() + 1000;
+        long end = start + 1000L * seconds;
+        List<SyntheticClient> clients = new ArrayList<SyntheticClient>(numClients);
+        for (int i = 0; i < numClients; i++) {
+            SyntheticClient client = new SyntheticClient(port, i + 1, start, end);
+            clients.add(client);
+            client.start();
+        }
+        Thread.sleep(Math.max(0, end - System.currentTimeMillis() - 500));
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        for (SyntheticClient client : clients) {
+            client.join();
+        }
+
+        int connected = 0;
+        int total = 0;
+        int least = Integer.MAX_VALUE;
+        double lateness = 0;
+        double latest = 0;
+        for (SyntheticClient client : clients) {
+            if (client.frames.get() > 0) {
+                connected++;
+            }
+            total += client.frames.get();
+            least = Math.min(least, client.frames.get());
+            lateness += client.lateness();
+            latest = Math.max(latest, client.latest);
+        }
+        double rate = 1000.0 / Game.GAME_PERIOD;
+        System.out.println(numClients + " clients, " + connected + " receiving snapshots over "
+                + seconds + " seconds (tick rate " + rate + " a second)");
+        System.out.println("  snapshots a second per client: average "
+                + (double) total / numClients / seconds + ", least " + (double) least / seconds);
+        System.out.println("  milliseconds late: average " + lateness / Math.max(connected, 1)
+                + ", most " + latest);
+        System.out.println("  threads running: " + threads);
+        System.exit(0);
+    }
+
+    /**
+     * A client with no display, run on its own thread
+     */
+    private static class SyntheticClient extends Thread {
+
+        private final int port;
+        private final int id;
+        private final long start;
+        private final long end;
+        private final AtomicInteger frames = new AtomicInteger();
+        private long earliest = Long.MAX_VALUE;   // Least arrival time less tick time
+        private long totalTransit;
+        private double latest;
+
+        SyntheticClient(int port, int id, long start, long end) {
+            super("Synthetic client " + id);
+            setDaemon(true);
+            this.port = port;
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            EnumSet<Command> commands = EnumSet.noneOf(Command.class);
+            try {
+                Connection.Server server = new Connection.Server(
+                        InetAddress.getLoopbackAddress(), port, "Load", id);
+                server.join();
+                while (System.currentTimeMillis() < end) {
+                    server.receiveHeaders();
+                    long now = System.currentTimeMillis();
+                    long transit = now - server.getTick() * Game.GAME_PERIOD;
+                    earliest = Math.min(earliest, transit);
+                    if (now >= start) {
+                        frames.incrementAndGet();
+                        totalTransit += transit;
+                        latest = Math.max(latest, transit - earliest);
+                    }
+                    server.send(commands);
+                }
+            } catch (IOException e) {
+                System.err.println("Client " + id + ": " + e);
+            }
+        }
+
+        /**
+         * @return The average milliseconds later than the earliest the
+         * counted snapshots arrived, only to be called once the client is done
+         */
+        double lateness() {
+            int count = frames.get();
+            return count == 0 ? 0 : (double) totalTransit / count - earliest;
+        }
+    }
+}
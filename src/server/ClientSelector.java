@@ -0,0 +1,233 @@
+package server;
+
+import common.Connection;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A ClientSelector does all of the server's socket work on its own thread
+ * with a single non-blocking Selector. It accepts connections, reads each
+ * client's handshake, parses received commands into the client's inbox and
+ * writes out whatever frames the server has queued, keeping any part of a
+ * frame the socket would not take for later. Clients whose handshake is
+ * complete may then be retrieved by another thread at a time of its choosing.
+ * @author Simon, Daniel
+ */
+class ClientSelector extends Thread implements ClientTransport {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final int maxClients;
+    private final LinkedList<Connection.Client> clientBuffer;  // Guarded by this
+    private final List<Connection.Client> connected;           // Selector thread only
+    private volatile boolean flushRequested;
+
+    /**
+     * What the selector knows about one connection
+     */
+    private static class Peer {
+
+        final ByteBuffer received = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        Connection.Client client;   // null until the handshake is read
+    }
+
+    /**
+     * Creates a new ClientSelector on the given port.
+     * @param port The port to bind to.
+     * @param maxClients The number of clients to accept before refusing any more
+     * @throws IOException if the channel cannot bind to the given port
+     */
+    ClientSelector(int port, int maxClients) throws IOException {
+        super("Client Selector");
+        setDaemon(true);
+        this.maxClients = maxClients;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().bind(new InetSocketAddress(port), maxClients);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        clientBuffer = new LinkedList<Connection.Client>();
+        connected = new ArrayList<Connection.Client>(maxClients);
+    }
+
+    /**
+     * Thread entry point
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Peer peer = (Peer) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(key, peer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key, peer.client);
+                            }
+                        } catch (IOException e) {
+                            disconnect(key, peer);
+                        }
+                    }
+                }
+                if (flushRequested) {
+                    flushRequested = false;
+                    flushAll();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+    }
+
+    /**
+     * Asks the selector thread to start writing out newly queued frames
+     */
+    @Override
+    public void flush() {
+        flushRequested = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for a client to connect and returns when one does.
+     * Will wait indefinitely if none connect.
+     * @return The first client to complete its handshake
+     */
+    @Override
+    public synchronized Connection.Client blockUntilClient() {
+        while (clientBuffer.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                System.err.println("local client failed to connect");
+                System.exit(-1);
+            }
+        }
+        return clientBuffer.removeFirst();
+    }
+
+    /**
+     * Loads all waiting clients into the given collection
+     * @param clients The client collection to add to
+     */
+    @Override
+    public synchronized void loadNewClients(Collection<Connection.Client> clients) {
+        clients.addAll(clientBuffer);
+        clientBuffer.clear();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (selector.keys().size() > maxClients) {
+            // The server socket holds one of the keys
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+        channel.register(selector, SelectionKey.OP_READ, new Peer());
+    }
+
+    private void read(SelectionKey key, Peer peer) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(peer.received) < 0) {
+            throw new IOException("Client closed the connection");
+        }
+        peer.received.flip();
+        try {
+            if (peer.client == null) {
+                peer.client = Connection.Client.handshake(channel, peer.received);
+                if (peer.client != null) {
+                    connected.add(peer.client);
+                    synchronized (this) {
+                        clientBuffer.add(peer.client);
+                        notifyAll();
+                    }
+                }
+            }
+            if (peer.client != null) {
+                peer.client.receive(peer.received);
+            }
+        } finally {
+            peer.received.compact();
+        }
+    }
+
+    /**
+     * Writes what it can of a client's outbox, watching for the socket to
+     * become writable again if any is left
+     */
+    private void write(SelectionKey key, Connection.Client client) throws IOException {
+        if (client.write()) {
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Starts writing every client with queued frames
+     */
+    private void flushAll() {
+        for (int i = connected.size() - 1; i >= 0; i--) {
+            Connection.Client client = connected.get(i);
+            SelectionKey key = client.getChannel().keyFor(selector);
+            if (client.isClosed() || key == null || !key.isValid()) {
+                connected.remove(i);
+                continue;
+            }
+            if (client.hasOutput()) {
+                try {
+                    write(key, client);
+                } catch (IOException e) {
+                    disconnect(key, (Peer) key.attachment());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops a connection, the server finds out the next time it reads
+     * commands from or sends a frame to the client
+     */
+    private void disconnect(SelectionKey key, Peer peer) {
+        key.cancel();
+        if (peer.client != null) {
+            peer.client.close();
+        } else {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Don't care
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package server;
+
+import common.Connection;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ClientThreads gives every connection threads of its own, working on
+ * blocking sockets. One reads the client's handshake and then its commands
+ * into its inbox, the other sleeps until the server has queued frames and
+ * then writes out the client's outbox. A slow client only ever holds up its
+ * own threads. The threads are daemons with small stacks, as there are two
+ * for every client.
+ * @author Simon, Daniel
+ */
+class ClientThreads extends Thread implements ClientTransport {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final long STACK_SIZE = 64 * 1024;
+    private final ServerSocketChannel serverChannel;
+    private final int maxClients;
+    private final AtomicInteger connections;
+    private final LinkedList<Connection.Client> clientBuffer;  // Guarded by this
+    private final List<Writer> writers;
+
+    /**
+     * Creates a new ClientThreads on the given port.
+     * @param port The port to bind to.
+     * @param maxClients The number of clients to accept before refusing any more
+     * @throws IOException if the channel cannot bind to the given port
+     */
+    ClientThreads(int port, int maxClients) throws IOException {
+        super("Client Acceptor");
+        setDaemon(true);
+        this.maxClients = maxClients;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port), maxClients);
+        connections = new AtomicInteger();
+        clientBuffer = new LinkedList<Connection.Client>();
+        writers = new CopyOnWriteArrayList<Writer>();
+    }
+
+    /**
+     * Thread entry point
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (connections.incrementAndGet() > maxClients) {
+                    connections.decrementAndGet();
+                    channel.close();
+                    continue;
+                }
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+                startThread(new Reader(channel), "Client Reader");
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (Writer writer : writers) {
+            writer.wake();
+        }
+    }
+
+    @Override
+    public synchronized Connection.Client blockUntilClient() {
+        while (clientBuffer.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                System.err.println("local client failed to connect");
+                System.exit(-1);
+            }
+        }
+        return clientBuffer.removeFirst();
+    }
+
+    @Override
+    public synchronized void loadNewClients(Collection<Connection.Client> clients) {
+        clients.addAll(clientBuffer);
+        clientBuffer.clear();
+    }
+
+    private synchronized void handshakeComplete(Connection.Client client) {
+        clientBuffer.add(client);
+        notifyAll();
+    }
+
+    private void startThread(Runnable task, String name) {
+        Thread thread = new Thread(null, task, name, STACK_SIZE);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads from one connection until it fails, then drops it
+     */
+    private class Reader implements Runnable {
+
+        private final SocketChannel channel;
+
+        Reader(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer received = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            Connection.Client client = null;
+            Writer writer = null;
+            try {
+                while (channel.read(received) >= 0) {
+                    received.flip();
+                    try {
+                        if (client == null) {
+                            client = Connection.Client.handshake(channel, received);
+                            if (client != null) {
+                                writer = new Writer(client);
+                                writers.add(writer);
+                                startThread(writer, "Client Writer");
+                                handshakeComplete(client);
+                            }
+                        }
+                        if (client != null) {
+                            client.receive(received);
+                        }
+                    } finally {
+                        received.compact();
+                    }
+                }
+            } catch (IOException e) {
+                // The connection failed or the client sent nonsense
+            }
+            // The server finds out the next time it reads commands from or
+            // sends a frame to the client
+            if (client != null) {
+                client.close();
+                writer.wake();
+            } else {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Don't care
+                }
+            }
+            connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes one client's outbox whenever frames have been queued, until
+     * the client is closed
+     */
+    private class Writer implements Runnable {
+
+        private final Connection.Client client;
+        private boolean woken;   // Guarded by this
+
+        Writer(Connection.Client client) {
+            this.client = client;
+        }
+
+        synchronized void wake() {
+            woken = true;
+            notify();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!client.isClosed()) {
+                    synchronized (this) {
+                        while (!woken) {
+                            wait();
+                        }
+                        woken = false;
+                    }
+                    client.write();
+                }
+            } catch (IOException e) {
+                client.close();
+            } catch (InterruptedException e) {
+                client.close();
+            }
+            writers.remove(this);
+        }
+    }
+}
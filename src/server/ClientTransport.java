@@ -0,0 +1,43 @@
+package server;
+
+import common.Connection;
+import java.util.Collection;
+
+/**
+ * A ClientTransport does all of the server's socket work off the tick
+ * thread. It accepts connections, reads each client's handshake and parses
+ * received commands into the client's inbox, and writes out the frames the
+ * server queues. The tick thread only ever touches a client's inbox and
+ * outbox, so it never waits on a socket whichever transport is used.
+ * @author Simon, Daniel
+ */
+interface ClientTransport {
+
+    // Kept small so that a slow client's snapshots back up in its outbox,
+    // where stale ones are dropped, rather than in the kernel
+    int SEND_BUFFER_SIZE = 16384;
+
+    /**
+     * Starts accepting connections
+     */
+    void start();
+
+    /**
+     * Asks for newly queued frames to start being written out
+     */
+    void flush();
+
+    /**
+     * Waits for a client to connect and returns when one does.
+     * Will wait indefinitely if none connect.
+     * @return The first client to complete its handshake
+     */
+    Connection.Client blockUntilClient();
+
+    /**
+     * Loads all clients which have completed their handshake since the last
+     * call into the given collection
+     * @param clients The client collection to add to
+     */
+    void loadNewClients(Collection<Connection.Client> clients);
+}
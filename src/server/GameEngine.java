@@ -3,8 +3,8 @@ package server;
 import common.Spacecraft;
 import common.Star;
 import common.Actor;
+import common.ActorStore;
 import common.Game;
-import java.util.ArrayList;
 import javax.vecmath.Vector2d;
 
 /**
@@ -14,7 +14,7 @@ import javax.vecmath.Vector2d;
  */
 class GameEngine {
 
-    ArrayList<Actor> actors; // All the current in-game actors
+    final ActorStore actors; // All the current in-game actors
     AI aiActor;              // The solitary AI spacecraft
     private final static double WIDE_STAR_VEL = 1.5;
     private final static double WIDE_STAR_DIST = 200;
@@ -22,12 +22,45 @@ class GameEngine {
     private final static double TIGHT_STAR_DIST = 100;
     private final static int AI_RESPAWN_PERIOD = 100;
     private int aiRespawnCounter = AI_RESPAWN_PERIOD;
+    private final Workers workers;
+    private final SpatialHash collisions;
+    private final GravitySolver gravity;
+    // The parallel parts of a step, created once to keep stepping garbage free
+    private final Workers.Task accelerate;
+    private final Workers.Task findCollisions;
+    private final Workers.Task integrate;
 
     /**
      * Adds the default actors to a new GameEngine
      */
     GameEngine() {
-        actors = new ArrayList<Actor>(Game.POPCAP); //NB: Pop cap not actually enforced
+        actors = new ActorStore(Game.POPCAP); //NB: Pop cap not actually enforced
+        gravity = Game.GRAVITY_SOLVER.equals("barneshut")
+                ? new BarnesHutGravity(Game.OPENING_ANGLE)
+                : new PairwiseGravity();
+        workers = new Workers(Game.PHYSICS_THREADS);
+        collisions = new SpatialHash(workers.getChunks());
+        accelerate = new Workers.Task() {
+
+            @Override
+            public void run(int from, int to, int chunk) {
+                gravity.accelerate(actors, from, to);
+            }
+        };
+        findCollisions = new Workers.Task() {
+
+            @Override
+            public void run(int from, int to, int chunk) {
+                collisions.findCollisions(from, to, chunk);
+            }
+        };
+        integrate = new Workers.Task() {
+
+            @Override
+            public void run(int from, int to, int chunk) {
+                actors.integrate(from, to);
+            }
+        };
 
         // Add the star(s)
         Vector2d starPos = new Vector2d(0.25 * Game.APPSIZE.width * (1 + 2 * Game.rand.nextDouble()),
@@ -98,35 +131,38 @@ class GameEngine {
      * update checks for collisions generated in the previous
      * step, applies gravitational forces between all objects, and
      * removes any objects that have somehow become dead.
+     * The physics runs over the actor store's arrays, the actors
+     * themselves are only asked to take damage and to age.
+     * Gravity, collision detection and integration are split across the
+     * workers, with each body only writing its own slot; collisions are
+     * applied afterwards in a fixed order so the result is the same for
+     * any number of threads.
      */
     void stepTime() {
-        // Look at every pair of objects to apply mutual forces
-        // and detect collisions.
-        for (int i = 0; i < actors.size(); ++i) {
-            Actor actor = actors.get(i);
-            for (int j = i + 1; j < actors.size(); ++j) {
-                Actor otherActor = actors.get(j);
-                actor.gravitate(otherActor);
-                if (actor.hasCollidedWith(otherActor)) {
-                    actor.damage(otherActor.getCollisionDamage());
-                    otherActor.damage(actor.getCollisionDamage());
-                }
+        // Apply mutual forces between all objects
+        gravity.prepare(actors);
+        workers.forEach(actors.size(), accelerate);
+
+        // Only actors in neighbouring cells of the spatial hash can collide
+        collisions.build(actors);
+        workers.forEach(actors.size(), findCollisions);
+        for (int chunk = 0; chunk < workers.getChunks(); ++chunk) {
+            for (int k = 0; k < collisions.getPairs(chunk); ++k) {
+                Actor actor = actors.get(collisions.getFirst(chunk, k));
+                Actor otherActor = actors.get(collisions.getSecond(chunk, k));
+                actor.damage(otherActor.getCollisionDamage());
+                otherActor.damage(actor.getCollisionDamage());
             }
         }
 
-        // Update positions and mark all dead objects
-        ArrayList<Actor> deadActors = new ArrayList<Actor>(actors.size());
-        for (Actor obj : actors) {
-            obj.stepTime();
-            if (obj.isDead()) {
-                deadActors.add(obj);
-            }
+        // Update positions then let each object age
+        workers.forEach(actors.size(), integrate);
+        for (int i = 0; i < actors.size(); ++i) {
+            actors.get(i).stepTime();
         }
 
         // Remove dead objects
-        for (Actor obj : deadActors) {
-            actors.remove(obj);
-        }
+        actors.removeDead();
 
         if (aiActor.isDead()) {
             if (--aiRespawnCounter < 0) {
@@ -0,0 +1,30 @@
+package server;
+
+import common.ActorStore;
+
+/**
+ * A GravitySolver applies the gravitational pull of every actor to every
+ * other actor for a single time-step. Different solvers trade accuracy
+ * for speed when there are many actors in the game.
+ *
+ * Each step the solver is prepared once and then asked to accelerate
+ * ranges of slots, possibly concurrently. An actor's acceleration must
+ * only depend on positions, never on which range it was computed in.
+ * @author Simon, Daniel
+ */
+interface GravitySolver {
+
+    /**
+     * Does any work needed before actors can be accelerated this step
+     * @param actors All the current in-game actors
+     */
+    void prepare(ActorStore actors);
+
+    /**
+     * Accelerates each actor in a range of slots towards all the others
+     * @param actors All the current in-game actors
+     * @param from The first slot to accelerate
+     * @param to One past the last slot to accelerate
+     */
+    void accelerate(ActorStore actors, int from, int to);
+}
@@ -0,0 +1,144 @@
+package server;
+
+import common.Command;
+import common.Spacecraft;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A HandoffSender passes the spacecraft of players hyperspacing away
+ * directly to the servers they are going to. The spacecraft is written on
+ * the tick it leaves and queued, and this thread writes it to the other
+ * server over a connection of its own, made the first time a player goes
+ * there and kept for the next. The other server takes the connection for a
+ * client which never joins the game, and the handoff for a message from it,
+ * once it has checked the port this server gives with PEER against the
+ * servers it has heard advertised.
+ * A handoff that cannot be delivered is lost, and the player is given a new
+ * spacecraft when the other server stops waiting for it.
+ * @author Simon, Daniel
+ */
+class HandoffSender extends Thread {
+
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final int SERVER_ID = 0;   // The ID given in the handshake
+    private final int port;
+    private final String name;
+    private final BlockingQueue<Handoff> queue;
+    private final Map<InetSocketAddress, Link> links;
+
+    /**
+     * A spacecraft on its way to another server
+     */
+    private static class Handoff {
+
+        final InetSocketAddress destination;
+        final ByteBuffer message;
+
+        Handoff(InetSocketAddress destination, ByteBuffer message) {
+            this.destination = destination;
+            this.message = message;
+        }
+    }
+
+    /**
+     * A connection to another server
+     */
+    private static class Link {
+
+        final Socket socket;
+        final DataOutputStream out;
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+    }
+
+    /**
+     * Creates a sender, which must be started
+     * @param port The port of the server sending, to name it by
+     */
+    HandoffSender(int port) {
+        super("Handoff Sender");
+        setDaemon(true);
+        this.port = port;
+        name = "Server " + port;
+        queue = new LinkedBlockingQueue<Handoff>();
+        links = new HashMap<InetSocketAddress, Link>();
+    }
+
+    /**
+     * Queues a spacecraft to be handed to another server
+     * @param destination The address of the server's TCP port
+     * @param spacecraft The spacecraft, which has already left the game here
+     */
+    void send(InetSocketAddress destination, Spacecraft spacecraft) {
+        ByteBuffer message = ByteBuffer.allocate(1 + Spacecraft.HANDOFF_SIZE);
+        message.put((byte) Command.HANDOFF.ordinal());
+        spacecraft.writeHandoff(message);
+        queue.add(new Handoff(destination, message));
+    }
+
+    /**
+     * Thread entry point
+     */
+    @Override
+    public void run() {
+        while (true) {
+            Handoff handoff;
+            try {
+                handoff = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // A kept connection may have been closed since, so try a new one
+            if (!deliver(handoff) && !deliver(handoff)) {
+                System.err.println("Couldn't hand a spacecraft to " + handoff.destination);
+            }
+        }
+    }
+
+    /**
+     * Writes a handoff, connecting to its destination if need be
+     * @return true if it was written
+     */
+    private boolean deliver(Handoff handoff) {
+        Link link = links.get(handoff.destination);
+        try {
+            if (link == null) {
+                Socket socket = new Socket();
+                socket.connect(handoff.destination, CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                link = new Link(socket);
+                links.put(handoff.destination, link);
+                link.out.writeInt(SERVER_ID);
+                link.out.writeChars(name + '\n');
+                // Handoffs are only taken from a server which says where it is
+                link.out.writeByte(Command.PEER.ordinal());
+                link.out.writeInt(port);
+            }
+            link.out.write(handoff.message.array());
+            link.out.flush();
+            return true;
+        } catch (IOException e) {
+            links.remove(handoff.destination);
+            if (link != null) {
+                try {
+                    link.socket.close();
+                } catch (IOException e2) {
+                    // Don't care
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package server;
+
+import common.Actor;
+import common.ActorStore;
+import common.Game;
+import common.ToroidalCoordinate2D;
+
+/**
+ * The exact, reference GravitySolver. Every actor is pulled by every other
+ * actor, which is O(n^2) in the number of actors.
+ *
+ * Each actor sums the pulls on it in slot order, each towards the nearest
+ * periodic image of the other actor on the torus, and then has its velocity
+ * clamped once. Stars ignore everything but other stars. These are the
+ * physics BarnesHutGravity approximates, so with an opening angle of zero the
+ * two differ only by the rounding of their sums.
+ * @author Simon, Daniel
+ */
+class PairwiseGravity implements GravitySolver {
+
+    private static final int STAR = Actor.ActorType.STAR.ordinal();
+    private final double width = Game.APPSIZE.getWidth();
+    private final double height = Game.APPSIZE.getHeight();
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void prepare(ActorStore actors) {
+        // Nothing to precompute
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void accelerate(ActorStore actors, int from, int to) {
+        int numActors = actors.size();
+        double[] x = actors.positionX();
+        double[] y = actors.positionY();
+        double[] gravity = actors.gravityConstants();
+        int[] type = actors.types();
+
+        for (int i = from; i < to; i++) {
+            boolean onlyStars = type[i] == STAR;
+            double accelerationX = 0;
+            double accelerationY = 0;
+            for (int j = 0; j < numActors; j++) {
+                if (j == i || (onlyStars && type[j] != STAR)) {
+                    continue;
+                }
+                // a = GM/r^2 along the unit vector towards the other actor
+                double dx = ToroidalCoordinate2D.nearestImage(x[j] - x[i], width);
+                double dy = ToroidalCoordinate2D.nearestImage(y[j] - y[i], height);
+                double r2 = dx * dx + dy * dy;
+                if (r2 > 0) {
+                    double scale = gravity[j] / (r2 * Math.sqrt(r2));
+                    accelerationX += scale * dx;
+                    accelerationY += scale * dy;
+                }
+            }
+            actors.accelerate(i, accelerationX, accelerationY);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import common.Advertisement;
+import common.Game;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A PeerDirectory listens to the advertisements servers multicast, as
+ * clients do, so that a server knows which of the addresses it is given are
+ * really those of servers on the LAN. Spacecraft are only handed to, and
+ * only taken from, servers which have advertised recently. A server on this
+ * host may be known by any of the host's addresses.
+ * @author Simon, Daniel
+ */
+class PeerDirectory extends Thread {
+
+    private static final long EXPIRY = 3 * Game.BROADCAST_PERIOD;
+    private static final int MAX_PEERS = 4 * Game.MAX_SERVERS;
+    private final MulticastSocket socket;
+    private final Map<InetSocketAddress, Long> lastSeen;
+
+    /**
+     * Creates a directory, which must be started
+     * @throws IOException if the advertisements cannot be listened to
+     */
+    PeerDirectory() throws IOException {
+        super("Peer Directory");
+        setDaemon(true);
+        socket = new MulticastSocket(Game.DEFAULT_UDP_PORT);
+        socket.joinGroup(new InetSocketAddress(InetAddress.getByName(Game.MULTICAST_GROUP), 0), null);
+        lastSeen = new ConcurrentHashMap<InetSocketAddress, Long>(Game.MAX_SERVERS);
+    }
+
+    /**
+     * @param address An IP address and TCP port, or null
+     * @return true if a server has advertised itself there recently
+     */
+    boolean isAdvertised(InetSocketAddress address) {
+        if (address == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long seen = lastSeen.get(address);
+        if (seen != null) {
+            return now - seen < EXPIRY;
+        }
+        if (!isLocal(address.getAddress())) {
+            return false;
+        }
+        for (Map.Entry<InetSocketAddress, Long> entry : lastSeen.entrySet()) {
+            InetSocketAddress advertised = entry.getKey();
+            if (advertised.getPort() == address.getPort() && now - entry.getValue() < EXPIRY
+                    && isLocal(advertised.getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Thread entry point
+     */
+    @Override
+    public void run() {
+        byte[] buffer = new byte[Game.UDP_PACKET_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                System.err.println(e.getMessage() + "\nStopped listening for other servers");
+                return;
+            }
+            Advertisement advertisement = Advertisement.read(buffer, packet.getLength());
+            if (advertisement != null) {
+                see(new InetSocketAddress(packet.getAddress(), advertisement.getPort()));
+            }
+        }
+    }
+
+    /**
+     * Notes a server as having just advertised, keeping no more than
+     * MAX_PEERS at once, the servers which have gone quiet first to go
+     */
+    private void see(InetSocketAddress address) {
+        long now = System.currentTimeMillis();
+        if (!lastSeen.containsKey(address) && lastSeen.size() >= MAX_PEERS) {
+            Iterator<Map.Entry<InetSocketAddress, Long>> entries = lastSeen.entrySet().iterator();
+            while (entries.hasNext()) {
+                if (now - entries.next().getValue() >= EXPIRY) {
+                    entries.remove();
+                }
+            }
+            if (lastSeen.size() >= MAX_PEERS) {
+                return;
+            }
+        }
+        lastSeen.put(address, now);
+    }
+
+    /**
+     * @return true if the address is one of this host's
+     */
+    private static boolean isLocal(InetAddress address) {
+        try {
+            return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+}
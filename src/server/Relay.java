@@ -0,0 +1,147 @@
+package server;
+
+import common.ActorCodec;
+import common.Command;
+import common.Connection;
+import common.Game;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * A Relay passes one game server's snapshots on to any number of
+ * spectators, so that however many are watching the game server sees a
+ * single connection. The relay spectates the server as a client would and
+ * records every snapshot it receives, under the same tick, with a
+ * SnapshotEncoder of its own, so each spectator is sent only the changes
+ * since the latest snapshot it acknowledged, just as the server's players
+ * are. Spectators connect and join or spectate as they would a game server,
+ * a client with the spectate option set to the relay's host:port does; as
+ * they have no spacecraft, anything they send but ENTRY, SPECTATE and EXIT
+ * is ignored. The relay runs headless, in place of a server, and is not
+ * advertised.
+ * @author Simon, Daniel
+ */
+public class Relay extends Thread {
+
+    private static final int MAX_SPECTATORS = 500;
+    private final Connection.Server upstream;
+    private final ClientTransport transport;
+    private final SnapshotEncoder snapshot;
+    private final List<Connection.Client> clients;
+    private final List<Connection.Client> spectators;
+    private final int[] commandBuffer;
+
+    /**
+     * Starts relaying a game server
+     * @param upstream The game server as host:port
+     * @param port The port to accept spectators on
+     * @throws IOException If the game server cannot be reached or the port bound to
+     */
+    public static void start(String upstream, int port) throws IOException {
+        int colon = upstream.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Relay " + upstream + " is not host:port");
+        }
+        InetAddress host = InetAddress.getByName(upstream.substring(0, colon));
+        int upstreamPort = Integer.parseInt(upstream.substring(colon + 1));
+        new Relay(new Connection.Server(host, upstreamPort, upstream, Game.rand.nextInt()), port).start();
+        System.out.println("Relaying " + upstream + " to spectators on port " + port);
+    }
+
+    /**
+     * Creates a relay of a game server
+     * @param upstream The connection to the game server
+     * @param port The port to accept spectators on
+     * @throws IOException If the port cannot be bound to
+     */
+    private Relay(Connection.Server upstream, int port) throws IOException {
+        super("Relay");
+        this.upstream = upstream;
+        DatagramChannel datagrams = DatagramChannel.open();
+        datagrams.configureBlocking(false);
+        datagrams.socket().bind(null);
+        snapshot = new SnapshotEncoder(Game.WIRE_FORMAT.equals("doubles")
+                ? new ActorCodec.Doubles()
+                : new ActorCodec.Compact(), datagrams);
+        clients = new ArrayList<Connection.Client>(MAX_SPECTATORS);
+        spectators = new ArrayList<Connection.Client>(MAX_SPECTATORS);
+        commandBuffer = new int[Game.COMMAND_BUFFER_SIZE];
+        transport = Game.CLIENT_TRANSPORT.equals("threads")
+                ? new ClientThreads(port, MAX_SPECTATORS)
+                : new ClientSelector(port, MAX_SPECTATORS);
+        transport.start();
+    }
+
+    /**
+     * Passes on each snapshot as it arrives, until the game server is lost
+     */
+    @Override
+    public void run() {
+        EnumSet<Command> none = EnumSet.noneOf(Command.class);
+        try {
+            upstream.spectate();
+            while (true) {
+                upstream.receiveHeaders();
+                snapshot.relay(upstream.getSnapshot(), upstream.getRoster());
+                transport.loadNewClients(clients);
+                handleClientRequests();
+                for (int s = spectators.size() - 1; s >= 0; s--) {
+                    Connection.Client client = spectators.get(s);
+                    try {
+                        snapshot.send(client, null);
+                    } catch (IOException e) {
+                        removeClient(client);
+                    }
+                }
+                transport.flush();
+                // Acknowledges the snapshot, so the next is a delta from it
+                upstream.send(none);
+            }
+        } catch (IOException e) {
+            System.err.println("Lost " + upstream.getName() + ": " + e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Starts and stops sending to spectators as they join or spectate, and leave
+     */
+    private void handleClientRequests() {
+        for (int c = clients.size() - 1; c >= 0; c--) {
+            Connection.Client client = clients.get(c);
+            try {
+                int numCommands = client.getCommands(commandBuffer);
+                for (int i = 0; i < numCommands; i++) {
+                    switch (Command.fromInt(commandBuffer[i])) {
+                        case ENTRY:
+                        case SPECTATE:
+                            if (!spectators.contains(client)) {
+                                spectators.add(client);
+                            }
+                            // Joining spectators start from a keyframe
+                            client.resetAcknowledged();
+                            break;
+                        case EXIT:
+                            spectators.remove(client);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                client.takeInput();
+            } catch (IOException e) {
+                removeClient(client);
+            }
+        }
+    }
+
+    private void removeClient(Connection.Client client) {
+        spectators.remove(client);
+        clients.remove(client);
+        client.close();
+    }
+}
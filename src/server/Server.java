@@ -1,15 +1,24 @@
 package server;
 
 import common.Actor;
+import common.ActorCodec;
 import common.Command;
 import common.Connection;
 import common.Connection.Client;
 import common.Game;
 import common.Missile;
+import common.Recording;
 import common.Spacecraft;
+import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -24,16 +33,29 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Server extends TimerTask {
 
-    private final Collection<Connection.Client> clients;
+    private final List<Connection.Client> clients;
     private final GameEngine engine;
     private final Map<Connection.Client, Spacecraft> spacecraftFromClient;
-    private static final int MAX_CLIENTS = 10;
+    private final List<Connection.Client> watchers;   // Clients not in the game which asked to watch
+    private final List<Connection.Client> spectators;   // Clients sent every snapshot without playing
+    private final Map<Connection.Client, Integer> arrivals;   // Clients arriving, to the tick they wait until
+    private final Map<Integer, Spacecraft> arriving;   // Spacecraft handed over, by ID
+    private final Map<Integer, Integer> arrivingSince;  // The tick each was handed over on
+    private final List<Spacecraft> handedOver;
+    private final HandoffSender handoffs;
+    private final PeerDirectory peers;
+    private final InetSocketAddress spectatorGroup;   // Where snapshots are multicast, null if not
+    private Recording.Writer recording;   // null if not recording
+    private static final int MAX_CLIENTS = 500;
+    private static final int WATCH_PERIOD = 10;   // Ticks between keyframes to watching clients
+    private static final int ARRIVAL_WAIT = 20;   // Ticks to wait for an arriving spacecraft
     private final boolean standalone;
     private boolean firstTime;
     private final int port;
-    private final ClientListener listener;
+    private ServerAdvertiser advertiser;
+    private final ClientTransport transport;
     private final int[] commandBuffer;
-    private final double[] actorBuffer;
+    private final SnapshotEncoder snapshot;
 
     /**
      * Starts a new Server object and schedules its loop for periodic execution
@@ -54,13 +76,48 @@ public class Server extends TimerTask {
     private Server(int port, boolean standalone) throws IOException {
         super();
         commandBuffer = new int[Game.COMMAND_BUFFER_SIZE];
-        actorBuffer = new double[Actor.NUM_ELEMENTS];
+        DatagramChannel datagrams = DatagramChannel.open();
+        datagrams.configureBlocking(false);
+        datagrams.socket().bind(null);
+        snapshot = new SnapshotEncoder(Game.WIRE_FORMAT.equals("doubles")
+                ? new ActorCodec.Doubles()
+                : new ActorCodec.Compact(), datagrams);
         engine = new GameEngine();
-        clients = new LinkedList<Connection.Client>();
+        clients = new ArrayList<Connection.Client>(MAX_CLIENTS);
         spacecraftFromClient = new ConcurrentHashMap<Client, Spacecraft>(MAX_CLIENTS);
+        watchers = new ArrayList<Connection.Client>();
+        spectators = new ArrayList<Connection.Client>();
+        arrivals = new LinkedHashMap<Connection.Client, Integer>();
+        arriving = new HashMap<Integer, Spacecraft>();
+        arrivingSince = new HashMap<Integer, Integer>();
+        handedOver = new ArrayList<Spacecraft>();
+        handoffs = new HandoffSender(port);
+        handoffs.start();
+        peers = new PeerDirectory();
+        peers.start();
+        if (Game.MULTICAST_SNAPSHOTS) {
+            spectatorGroup = new InetSocketAddress(InetAddress.getByName(Game.SPECTATOR_GROUP), port);
+            System.out.println("Multicasting snapshots to " + spectatorGroup);
+        } else {
+            spectatorGroup = null;
+        }
+        if (!Game.RECORD.isEmpty()) {
+            recording = new Recording.Writer(new File(Game.RECORD));
+            System.out.println("Recording to " + Game.RECORD);
+            final Recording.Writer writer = recording;
+            Runtime.getRuntime().addShutdownHook(new Thread("Recording Closer") {
+                @Override
+                public void run() {
+                    closeRecording(writer);
+                }
+            });
+        }
         this.standalone = standalone;
         this.port = port;
-        listener = new ClientListener(port);
+        transport = Game.CLIENT_TRANSPORT.equals("threads")
+                ? new ClientThreads(port, MAX_CLIENTS)
+                : new ClientSelector(port, MAX_CLIENTS);
+        transport.start();
     }
 
     /**
@@ -69,36 +126,40 @@ public class Server extends TimerTask {
     @Override
     public void run() {
         // First time set up code
-        if (!firstTime && !standalone) {
-            findLocalClient();
+        if (!firstTime) {
+            if (!standalone) {
+                findLocalClient();
+            }
+            advertiser = new ServerAdvertiser(port);
+            firstTime = true;
         }
 
 
         // Main game loop
+        long start = System.nanoTime();
         handleClientRequests();
+        admitArrivals();
 
         updateAI();
 
         engine.stepTime();
 
         transmitState();
+        transport.flush();
 
-        listener.loadNewClients(clients);
+        transport.loadNewClients(clients);
+        advertiser.record(spacecraftFromClient.size(), engine.actors.size(), System.nanoTime() - start);
     }
 
     /**
      * Finishes the initialization with blocking
      * code that cannot be run in main thread by
-     * blocking until local client is found then
-     * starting a server advertising service.
+     * blocking until local client is found.
      */
     private void findLocalClient() {
-        Client localClient = listener.blockUntilClient();
+        Client localClient = transport.blockUntilClient();
         clients.add(localClient);
         addActorfromClient(localClient);
-        new ServerAdvertiser(port);
-        new Thread(listener).start();
-        firstTime = true;
     }
 
     /**
@@ -110,13 +171,9 @@ public class Server extends TimerTask {
     private void handleCommand(Spacecraft spacecraft, Command input) {
         switch (input) {
             case FORWARD:
-                spacecraft.accelerate(0.5);
-                break;
             case TURN_CCW:
-                spacecraft.counterClockwise();
-                break;
             case TURN_CW:
-                spacecraft.clockwise();
+                spacecraft.steer(input);
                 break;
             case FIRE:
                 if (!spacecraft.isDead()) {
@@ -151,17 +208,25 @@ public class Server extends TimerTask {
             clientActor.destroy();
         }
         spacecraftFromClient.remove(client);
+        watchers.remove(client);
+        spectators.remove(client);
+        arrivals.remove(client);
         clients.remove(client);
+        client.close();
     }
 
     /**
      * Acts upon all requests from all connected clients,
-     * even those not currently in the game.
+     * even those not currently in the game. A client's controls are
+     * applied at most once a tick, however many inputs it has sent.
+     * Spacecraft handed over by other servers are collected, and those of
+     * clients arriving admitted.
      */
     private void handleClientRequests() {
         Command input;
         int numCommands;
-        for (Connection.Client client : clients) {
+        for (int c = 0; c < clients.size(); c++) {
+            Connection.Client client = clients.get(c);
             try {
                 numCommands = client.getCommands(commandBuffer);
                 for (int i = 0; i < numCommands; i++) {
@@ -171,45 +236,171 @@ public class Server extends TimerTask {
                         case EXIT:
                             engine.actors.remove(spacecraftFromClient.get(client));
                             spacecraftFromClient.remove(client);
+                            watchers.remove(client);
+                            spectators.remove(client);
+                            arrivals.remove(client);
+                            break;
+                        case SPECTATE:
+                            watchers.remove(client);
+                            if (!spacecraftFromClient.containsKey(client) && !spectators.contains(client)) {
+                                spectators.add(client);
+                            }
+                            client.resetAcknowledged();
+                            break;
+                        case MIGRATE:
+                            Spacecraft leaving = spacecraftFromClient.remove(client);
+                            engine.actors.remove(leaving);
+                            watchers.remove(client);
+                            arrivals.remove(client);
+                            // Even a destroyed one, so the other server need not wait,
+                            // but only to somewhere a server has advertised
+                            InetSocketAddress destination = client.getMigrationAddress();
+                            if (leaving != null && peers.isAdvertised(destination)) {
+                                handoffs.send(destination, leaving);
+                            }
+                            break;
+                        case PEER:
+                            if (!peers.isAdvertised(client.getPeerAddress())) {
+                                throw new IOException(client.getName() + " is not an advertised server");
+                            }
+                            client.trustAsPeer();
+                            break;
+                        case ARRIVE:
+                            watchers.remove(client);
+                            spectators.remove(client);
+                            if (!spacecraftFromClient.containsKey(client)
+                                    || spacecraftFromClient.get(client).isDead()) {
+                                arrivals.put(client, snapshot.getTick() + ARRIVAL_WAIT);
+                            }
+                            client.resetAcknowledged();
+                            break;
+                        case WATCH:
+                            if (!spacecraftFromClient.containsKey(client) && !watchers.contains(client)) {
+                                // Watchers are sent keyframes and never acknowledge them
+                                client.resetAcknowledged();
+                                watchers.add(client);
+                            }
                             break;
                         case ENTRY:
+                            watchers.remove(client);
+                            spectators.remove(client);
                             if (!spacecraftFromClient.containsKey(client)
                                     || spacecraftFromClient.get(client).isDead()) {
                                 addActorfromClient(client);
                             }
+                            // Joining clients start again from a keyframe
+                            client.resetAcknowledged();
                             break;
-                        default:
-                            if (spacecraftFromClient.get(client) != null) {
-                                handleCommand(spacecraftFromClient.get(client), input);
-                            }
+                    }
+                }
+                client.takeHandoffs(handedOver);
+                int controls = client.takeInput();
+                Spacecraft spacecraft = spacecraftFromClient.get(client);
+                if (controls > 0 && spacecraft != null) {
+                    if (recording != null) {
+                        recording.addInput(spacecraft.getID(), controls);
+                    }
+                    for (Command control : Command.CONTROLS) {
+                        if ((controls & control.bit()) != 0) {
+                            handleCommand(spacecraft, control);
+                        }
                     }
                 }
             } catch (IOException e) {
                 removeClient(client);
+                c--;
             }
         }
     }
 
     /**
-     * Transmits the entire game state to all currently playing clients
+     * Puts the spacecraft handed over by other servers into the game as
+     * their clients arrive. A client whose spacecraft was destroyed, or has
+     * not come within ARRIVAL_WAIT ticks, is given a new one, and a
+     * spacecraft whose client has not come within that long is forgotten.
+     */
+    private void admitArrivals() {
+        int tick = snapshot.getTick();
+        for (Spacecraft spacecraft : handedOver) {
+            arriving.put(spacecraft.getID(), spacecraft);
+            arrivingSince.put(spacecraft.getID(), tick);
+        }
+        handedOver.clear();
+        Iterator<Map.Entry<Connection.Client, Integer>> waiting = arrivals.entrySet().iterator();
+        while (waiting.hasNext()) {
+            Map.Entry<Connection.Client, Integer> arrival = waiting.next();
+            Connection.Client client = arrival.getKey();
+            Spacecraft spacecraft = arriving.remove(client.getID());
+            if (spacecraft != null) {
+                arrivingSince.remove(client.getID());
+                if (spacecraft.isDead()) {
+                    addActorfromClient(client);
+                } else {
+                    engine.actors.add(spacecraft);
+                    spacecraftFromClient.put(client, spacecraft);
+                }
+                waiting.remove();
+            } else if (tick >= arrival.getValue()) {
+                addActorfromClient(client);
+                waiting.remove();
+            }
+        }
+        Iterator<Map.Entry<Integer, Integer>> unclaimed = arrivingSince.entrySet().iterator();
+        while (unclaimed.hasNext()) {
+            Map.Entry<Integer, Integer> since = unclaimed.next();
+            if (tick - since.getValue() > ARRIVAL_WAIT) {
+                arriving.remove(since.getKey());
+                unclaimed.remove();
+            }
+        }
+    }
+
+    /**
+     * Transmits the entire game state to all currently playing clients and
+     * spectators, and every WATCH_PERIOD ticks a keyframe to the clients
+     * watching. The state is encoded only once and the same frame written to
+     * each client. If asked to, the state is also multicast on the LAN and
+     * recorded.
      */
     private void transmitState() {
-        //transmit the header to each client
-        for (Connection.Client client : spacecraftFromClient.keySet()) {
+        snapshot.encode(engine.actors.asList(), spacecraftFromClient.keySet());
+        for (Map.Entry<Connection.Client, Spacecraft> player : spacecraftFromClient.entrySet()) {
+            Connection.Client client = player.getKey();
             try {
-                client.sendHeader(engine.actors, spacecraftFromClient.keySet());
+                snapshot.send(client, player.getValue());
             } catch (IOException e) {
                 removeClient(client);
             }
         }
-
-        // Transmit the actor list to each client
-        for (Actor actor : engine.actors) {
-            //calculate a stream for each actor only once, then transmit to each client
-            actor.toStream(actorBuffer);
-            for (Connection.Client client : spacecraftFromClient.keySet()) {
+        for (int s = spectators.size() - 1; s >= 0; s--) {
+            Connection.Client client = spectators.get(s);
+            try {
+                snapshot.send(client, null);
+            } catch (IOException e) {
+                removeClient(client);
+            }
+        }
+        if (spectatorGroup != null) {
+            try {
+                snapshot.multicast(spectatorGroup);
+            } catch (IOException e) {
+                System.err.println(e.getMessage() + "\nSnapshot multicast failed");
+            }
+        }
+        if (recording != null) {
+            try {
+                snapshot.record(recording);
+            } catch (IOException e) {
+                System.err.println(e.getMessage() + "\nRecording stopped");
+                closeRecording(recording);
+                recording = null;
+            }
+        }
+        if (snapshot.getTick() % WATCH_PERIOD == 0) {
+            for (int w = watchers.size() - 1; w >= 0; w--) {
+                Connection.Client client = watchers.get(w);
                 try {
-                    client.sendActor(actorBuffer);
+                    snapshot.sendKeyframe(client);
                 } catch (IOException e) {
                     removeClient(client);
                 }
@@ -217,12 +408,23 @@ public class Server extends TimerTask {
         }
     }
 
+    /**
+     * Ends a recording, so its file is written out and cut back to its last tick
+     */
+    private static void closeRecording(Recording.Writer writer) {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage() + "\nRecording not closed cleanly");
+        }
+    }
+
     /**
      * Allows the ai spacecraft to update its state
      */
     private void updateAI() {
         if (!engine.aiActor.isDead()) {
-            for (Command command : engine.aiActor.update(engine.actors)) {
+            for (Command command : engine.aiActor.update(engine.actors.asList())) {
                 handleCommand(engine.aiActor, command);
             }
         }
@@ -1,37 +1,49 @@
 package server;
 
+import common.Advertisement;
 import common.Game;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
 
 /**
  * A server advertiser periodically sends Datagrams to the MULTICAST_GROUP defined in Game.
- * These packet contain the host's user name (for identification) and the TCP port which
- * the server is bound to. The client may determine the host's address by inspecting the packet.
+ * Each packet is an Advertisement holding the host's user name (for identification), the
+ * TCP port which the server is bound to and how loaded the server has been recently. The
+ * client may determine the host's address by inspecting the packet. The server records
+ * every tick with the advertiser, which keeps the last few seconds' worth.
  * @author Simon, Daniel
  */
 class ServerAdvertiser extends TimerTask {
 
+    private static final int TICKS_KEPT = 100;   // Five seconds
+    private final int tcpPort;
+    private final String name;
+    private final long[] tickNanos;   // Guarded by this
+    private final long[] sorted;
+    private int ticks;
+    private int players;
+    private int actors;
     private DatagramSocket socket;
-    private DatagramPacket packet;
+    private InetAddress group;
 
     /**
-     * Creates the message to send and instantiates the Socket and Packet objects
+     * Instantiates the Socket and starts advertising
      * @param tcpPort The port which the TCP based server is bound to
-     * @throws IOException If the socket or packet fail to find the host
      */
     ServerAdvertiser(int tcpPort) {
         super();
-        String name = tcpPort + " " + System.getProperty("user.name");
-        int length = name.length() > Game.UDP_PACKET_LENGTH ? Game.UDP_PACKET_LENGTH : name.length();
-        byte[] buffer = name.substring(0, length).getBytes();
+        this.tcpPort = tcpPort;
+        name = System.getProperty("user.name");
+        tickNanos = new long[TICKS_KEPT];
+        sorted = new long[TICKS_KEPT];
         try {
             socket = new DatagramSocket();
-            packet = new DatagramPacket(buffer, length, InetAddress.getByName(Game.MULTICAST_GROUP), Game.DEFAULT_UDP_PORT);
+            group = InetAddress.getByName(Game.MULTICAST_GROUP);
             // Start the service
             new Timer("Multicast Service", true).scheduleAtFixedRate(this, 0, Game.BROADCAST_PERIOD);
         } catch (IOException e) {
@@ -40,15 +52,51 @@ class ServerAdvertiser extends TimerTask {
         }
     }
 
+    /**
+     * Records how a tick went, for the next advertisement
+     * @param players The number of players in the game
+     * @param actors The number of actors in the game
+     * @param nanos How long the tick took in nanoseconds
+     */
+    synchronized void record(int players, int actors, long nanos) {
+        this.players = players;
+        this.actors = actors;
+        tickNanos[ticks % TICKS_KEPT] = nanos;
+        ticks++;
+    }
+
     /**
      * Sends a single Datagram packet. On failure outputs to stderr. Not for external access.
      */
     @Override
     public void run() {
+        byte[] buffer = advertise().toBytes();
         try {
-            socket.send(packet);
+            socket.send(new DatagramPacket(buffer, buffer.length, group, Game.DEFAULT_UDP_PORT));
         } catch (IOException e) {
             System.err.println(e.getMessage() + "\nMulticast failed");
         }
     }
+
+    /**
+     * @return The advertisement of the ticks recorded recently
+     */
+    private synchronized Advertisement advertise() {
+        int count = Math.min(ticks, TICKS_KEPT);
+        System.arraycopy(tickNanos, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        return new Advertisement(tcpPort, name, players, actors,
+                percentile(count, 0.5), percentile(count, 0.95), percentile(count, 0.99),
+                Game.MULTICAST_SNAPSHOTS);
+    }
+
+    /**
+     * @return A percentile of the first count sorted tick times in microseconds
+     */
+    private int percentile(int count, double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        return (int) (sorted[(int) Math.ceil(fraction * count) - 1] / 1000);
+    }
 }
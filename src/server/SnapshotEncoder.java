@@ -0,0 +1,277 @@
+package server;
+
+import common.Actor;
+import common.ActorCodec;
+import common.Connection;
+import common.Recording;
+import common.Roster;
+import common.Snapshot;
+import common.Spacecraft;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collection;
+import java.util.List;
+import javax.vecmath.Vector2d;
+
+/**
+ * A SnapshotEncoder records the state of each tick and serialises it into
+ * reusable frames, each of which can be handed to a client in a single write.
+ * A client is sent only the changes since the latest snapshot it has
+ * acknowledged, or a keyframe if it has acknowledged none that are still in
+ * the history. Clients acknowledging the same tick share the same frame, so
+ * each frame is encoded at most once per tick. Just before a frame is handed
+ * to a client the few bytes which are the client's own, its latest applied
+ * input and its spacecraft's velocity, are written into it. Frames are laid
+ * out as Connection.Server.receiveHeaders reads them, with the actors written
+ * by the encoder's ActorCodec. The roster is recorded along with each tick, so
+ * a frame carries only the players who joined or left since its baseline.
+ * Clients that asked for datagrams are sent the same frame in a single
+ * non-blocking datagram instead; frames too large for one are dropped, and the
+ * client carries on acknowledging an older tick. The same frames can also be
+ * multicast to spectators on the LAN, or recorded to play back later.
+ * @author Simon, Daniel
+ */
+class SnapshotEncoder {
+
+    private static final int KEYFRAME = Snapshot.HISTORY;
+    private static final int STREAM_KEYFRAME = 20;   // Ticks between keyframes multicast or recorded
+    private final ActorCodec codec;
+    private final DatagramChannel datagrams;
+    private final Snapshot[] history;
+    private final int[] rosterVersions;   // The roster's version on each tick in the history
+    private final Roster roster;
+    private final Frame[] frames;      // One per baseline in the history, then the keyframe
+    private final int[] frameTicks;    // The tick each frame was last encoded on
+    private final DataOutputStream[] outs;
+    private int tick = -1;
+    private final Vector2d velocity = new Vector2d();
+
+    /**
+     * Creates an encoder with an empty history
+     * @param codec The codec to write actors with
+     * @param datagrams A non-blocking channel to send datagrams with, or
+     * null if no client will ask for them
+     */
+    SnapshotEncoder(ActorCodec codec, DatagramChannel datagrams) {
+        this.codec = codec;
+        this.datagrams = datagrams;
+        history = new Snapshot[Snapshot.HISTORY];
+        rosterVersions = new int[Snapshot.HISTORY];
+        roster = new Roster();
+        frames = new Frame[Snapshot.HISTORY + 1];
+        frameTicks = new int[Snapshot.HISTORY + 1];
+        outs = new DataOutputStream[Snapshot.HISTORY + 1];
+        for (int i = 0; i < history.length; i++) {
+            history[i] = new Snapshot();
+        }
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame();
+            frameTicks[i] = -1;
+            outs[i] = new DataOutputStream(frames[i]);
+        }
+    }
+
+    /**
+     * Records a snapshot of the game as the next tick
+     * @param actors All the current in-game actors
+     * @param players The clients currently in the game (their names are sent)
+     */
+    void encode(List<Actor> actors, Collection<Connection.Client> players) {
+        tick++;
+        history[tick % history.length].capture(tick, actors, codec);
+        rosterVersions[tick % history.length] = roster.update(players);
+        if (tick >= history.length - 1) {
+            // No client can have a baseline older than the history
+            roster.trim(rosterVersions[(tick + 1) % history.length]);
+        }
+    }
+
+    /**
+     * Records a snapshot received from another server as the latest, under
+     * the tick it was taken on there, for a relay passing on that server's game
+     * @param state The snapshot, newer than any recorded before
+     * @param players The players in that server's game as of the snapshot
+     */
+    void relay(Snapshot state, Roster players) {
+        tick = state.getTick();
+        history[tick % history.length].set(state);
+        rosterVersions[tick % history.length] = roster.update(players);
+        // Slots skipped over only hold older versions, so this never trims too much
+        roster.trim(rosterVersions[(tick + 1) % history.length]);
+    }
+
+    /**
+     * @return The tick of the latest snapshot
+     */
+    int getTick() {
+        return tick;
+    }
+
+    /**
+     * Sends the latest snapshot to a client
+     * @param client The client to send to
+     * @param spacecraft The client's spacecraft, null for a spectator
+     * @throws IOException if transmission fails
+     */
+    void send(Connection.Client client, Spacecraft spacecraft) throws IOException {
+        if (spacecraft == null) {
+            velocity.set(0, 0);
+        } else {
+            spacecraft.getVelocity(velocity);
+        }
+        transmit(client, frameFor(client.getAcknowledged()));
+    }
+
+    /**
+     * Sends the latest snapshot to a client not in the game as a keyframe,
+     * whatever it has acknowledged
+     * @param client The client to send to
+     * @throws IOException if transmission fails
+     */
+    void sendKeyframe(Connection.Client client) throws IOException {
+        velocity.set(0, 0);
+        transmit(client, frameFor(-1));
+    }
+
+    /**
+     * Sends the latest snapshot in one datagram to a multicast group, for
+     * any number of spectators on the LAN
+     * @param group The group and port to send to
+     * @throws IOException if the datagram cannot be sent
+     */
+    void multicast(InetSocketAddress group) throws IOException {
+        Frame frame = streamFrame();
+        if (frame.size() <= Connection.Server.MAX_DATAGRAM) {
+            datagrams.send(frame.asBuffer(), group);
+        }
+    }
+
+    /**
+     * Appends the latest snapshot to a recording, with the inputs added to
+     * the recording since the last
+     * @param recording The recording to write to
+     * @throws IOException if the recording cannot be written to
+     */
+    void record(Recording.Writer recording) throws IOException {
+        recording.write(tick, streamFrame().asBuffer(), tick % STREAM_KEYFRAME == 0);
+    }
+
+    /**
+     * Finds the frame for a stream of every snapshot which nothing is
+     * acknowledged on. It is a delta from the tick before, or a keyframe
+     * every STREAM_KEYFRAME ticks, for anyone starting at or losing a frame.
+     * @return The frame, with nothing of any client's in it
+     */
+    private Frame streamFrame() {
+        Frame frame = frameFor(tick % STREAM_KEYFRAME == 0 ? -1 : tick - 1);
+        frame.setInt(4, 0);
+        frame.setInt(8, 0);
+        frame.setInt(12, 0);
+        return frame;
+    }
+
+    /**
+     * Writes a client's own bytes into a frame and sends it
+     */
+    private void transmit(Connection.Client client, Frame frame) throws IOException {
+        // Both ways of sending copy the frame, so the next client can have its own
+        frame.setInt(4, client.getAppliedInput());
+        frame.setInt(8, Float.floatToIntBits((float) velocity.x));
+        frame.setInt(12, Float.floatToIntBits((float) velocity.y));
+        InetSocketAddress address = client.getDatagramAddress();
+        if (address == null || datagrams == null) {
+            client.sendFrame(frame, tick);
+        } else if (frame.size() <= Connection.Server.MAX_DATAGRAM) {
+            // If the socket's buffer is full the datagram is simply lost
+            datagrams.send(frame.asBuffer(), address);
+        }
+    }
+
+    /**
+     * @param acknowledged The tick a client has acknowledged, -1 for none
+     * @return The frame that client would be sent, ready to be read from the start
+     */
+    ByteBuffer getFrame(int acknowledged) {
+        return frameFor(acknowledged).asBuffer();
+    }
+
+    /**
+     * Finds the frame for a client, encoding it if no other client has
+     * needed it this tick
+     */
+    private Frame frameFor(int acknowledged) {
+        Snapshot baseline = null;
+        int index = KEYFRAME;
+        if (acknowledged >= 0 && acknowledged < tick && tick - acknowledged < history.length
+                && history[acknowledged % history.length].getTick() == acknowledged) {
+            index = acknowledged % history.length;
+            baseline = history[index];
+        }
+        if (frameTicks[index] != tick) {
+            frameTicks[index] = tick;
+            encodeFrame(frames[index], outs[index], baseline);
+        }
+        return frames[index];
+    }
+
+    private void encodeFrame(Frame frame, DataOutputStream out, Snapshot baseline) {
+        frame.reset();
+        try {
+            out.writeInt(0);    // Length, filled in below
+            out.writeInt(0);    // The client's input and velocity, filled in by send
+            out.writeFloat(0);
+            out.writeFloat(0);
+            out.writeByte(codec.getVersion());
+            out.writeInt(tick);
+            out.writeInt(baseline == null ? -1 : baseline.getTick());
+            roster.writeChanges(out, baseline == null ? -1 : rosterVersions[baseline.getTick() % history.length]);
+            history[tick % history.length].writeDelta(out, baseline, codec);
+        } catch (IOException e) {
+            // Writing to memory cannot fail
+            throw new IllegalStateException(e);
+        }
+        frame.setInt(0, frame.size() - 4);
+        frame.wrap();
+    }
+
+    /**
+     * A byte buffer whose contents can be patched after writing
+     */
+    private static class Frame extends ByteArrayOutputStream {
+
+        private ByteBuffer view;
+
+        Frame() {
+            super(8192);
+        }
+
+        /**
+         * Makes the finished contents available to asBuffer
+         */
+        void wrap() {
+            view = ByteBuffer.wrap(buf, 0, count);
+        }
+
+        /**
+         * @return The contents of the frame, ready to be read from the start
+         */
+        ByteBuffer asBuffer() {
+            view.position(0);
+            return view;
+        }
+
+        /**
+         * Overwrites four bytes with a big-endian int
+         */
+        void setInt(int position, int value) {
+            buf[position] = (byte) (value >>> 24);
+            buf[position + 1] = (byte) (value >>> 16);
+            buf[position + 2] = (byte) (value >>> 8);
+            buf[position + 3] = (byte) value;
+        }
+    }
+}
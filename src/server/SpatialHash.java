@@ -0,0 +1,239 @@
+package server;
+
+import common.ActorStore;
+import common.Game;
+
+/**
+ * A uniform grid over the toroidal game space used as a collision broad-phase.
+ * Actors are bucketed by the cell holding their centre; since a cell is never
+ * smaller than the largest actor, two actors can only overlap when their cells
+ * are neighbours, where neighbours wrap around the edges of the space in the
+ * same way as ToroidalCoordinate2D. Only those candidates are given the
+ * bounding box test, ActorStore.overlaps, which Actor.hasCollidedWith also
+ * uses, so the results match a test of every pair.
+ *
+ * Once built, the hash can be searched by several threads at once, each
+ * taking a chunk of the actors and recording collisions in its own list.
+ * @author Simon, Daniel
+ */
+class SpatialHash {
+
+    private final double width;
+    private final double height;
+    private int columns;
+    private int rows;
+    private double cellWidth;
+    private double cellHeight;
+    private int[] cellStart;   // Index into members of each cell's first actor
+    private int[] cellOf;      // The cell each actor was placed in
+    private int[] members;     // Actor indices sorted by cell
+    private int numActors;
+    private int[][] pairs;     // Colliding actor indices of each chunk, two per collision
+    private final int[] numPairs;
+    private boolean allPairs;  // True if the grid is too coarse to use
+    // Bounding box arrays of the store being tested
+    private double[] x;
+    private double[] y;
+    private double[] w;
+    private double[] h;
+
+    /**
+     * Creates a spatial hash covering the game space
+     * @param chunks The number of chunks the search may be split into
+     */
+    SpatialHash(int chunks) {
+        width = Game.APPSIZE.getWidth();
+        height = Game.APPSIZE.getHeight();
+        cellStart = new int[1];
+        cellOf = new int[Game.POPCAP];
+        members = new int[Game.POPCAP];
+        pairs = new int[chunks][2 * Game.POPCAP];
+        numPairs = new int[chunks];
+    }
+
+    /**
+     * Sorts the actors into the cells of the grid
+     * @param actors The actors to test
+     */
+    void build(ActorStore actors) {
+        numActors = actors.size();
+        x = actors.positionX();
+        y = actors.positionY();
+        w = actors.widths();
+        h = actors.heights();
+        if (cellOf.length < numActors) {
+            cellOf = new int[2 * numActors];
+            members = new int[2 * numActors];
+        }
+        resize(numActors);
+
+        // Fewer than three cells along an axis would make some neighbours
+        // the same cell, so fall back to testing every pair
+        allPairs = columns < 3 || rows < 3;
+        if (allPairs) {
+            return;
+        }
+
+        // Counting sort of the actors into their cells
+        int numCells = columns * rows;
+        for (int c = 0; c <= numCells; c++) {
+            cellStart[c] = 0;
+        }
+        for (int i = 0; i < numActors; i++) {
+            cellOf[i] = cell(column(x[i]), row(y[i]));
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < numCells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        for (int i = 0; i < numActors; i++) {
+            members[--cellStart[cellOf[i] + 1]] = i;
+        }
+        // Each cell's end index was decremented down to its own start, so
+        // shift the starts back into place
+        for (int c = 0; c < numCells; c++) {
+            cellStart[c] = cellStart[c + 1];
+        }
+        cellStart[numCells] = numActors;
+    }
+
+    /**
+     * Finds every pair of actors whose bounding boxes overlap, where the
+     * lower of the pair is in the given range. The pairs can be retrieved
+     * with getFirst and getSecond, the first index of a pair is always lower
+     * than the second and each pair is reported once.
+     * @param from The first actor to search from
+     * @param to One past the last actor to search from
+     * @param chunk The chunk to record the pairs in
+     * @return The number of colliding pairs found
+     */
+    int findCollisions(int from, int to, int chunk) {
+        numPairs[chunk] = 0;
+        if (allPairs) {
+            return findAllCollisions(from, to, chunk);
+        }
+
+        // Narrow-phase test against actors in the 3x3 block of cells around
+        // each actor, wrapping around the edges of the space
+        for (int i = from; i < to; i++) {
+            int column = cellOf[i] % columns;
+            int row = cellOf[i] / columns;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    int c = cell(wrap(column + dx, columns), wrap(row + dy, rows));
+                    for (int m = cellStart[c]; m < cellStart[c + 1]; m++) {
+                        int j = members[m];
+                        if (j > i && overlaps(i, j)) {
+                            addPair(chunk, i, j);
+                        }
+                    }
+                }
+            }
+        }
+        return numPairs[chunk];
+    }
+
+    /**
+     * @param chunk A chunk searched by findCollisions
+     * @return The number of pairs found in the chunk
+     */
+    int getPairs(int chunk) {
+        return numPairs[chunk];
+    }
+
+    /**
+     * @param chunk The chunk the pair was recorded in
+     * @param pair The index of a pair within the chunk
+     * @return The lower actor index of the pair
+     */
+    int getFirst(int chunk, int pair) {
+        return pairs[chunk][2 * pair];
+    }
+
+    /**
+     * @param chunk The chunk the pair was recorded in
+     * @param pair The index of a pair within the chunk
+     * @return The higher actor index of the pair
+     */
+    int getSecond(int chunk, int pair) {
+        return pairs[chunk][2 * pair + 1];
+    }
+
+    /**
+     * Tests every pair of actors, used when the grid is too coarse to help
+     * @return The number of colliding pairs found
+     */
+    private int findAllCollisions(int from, int to, int chunk) {
+        for (int i = from; i < to; i++) {
+            for (int j = i + 1; j < numActors; j++) {
+                if (overlaps(i, j)) {
+                    addPair(chunk, i, j);
+                }
+            }
+        }
+        return numPairs[chunk];
+    }
+
+    /**
+     * Sizes the cells so that none is smaller than the largest actor
+     * @param numActors The number of actors about to be hashed
+     */
+    private void resize(int numActors) {
+        double maxWidth = 1;
+        double maxHeight = 1;
+        for (int i = 0; i < numActors; i++) {
+            maxWidth = Math.max(maxWidth, w[i]);
+            maxHeight = Math.max(maxHeight, h[i]);
+        }
+        columns = Math.max(1, (int) (width / maxWidth));
+        rows = Math.max(1, (int) (height / maxHeight));
+        cellWidth = width / columns;
+        cellHeight = height / rows;
+        if (cellStart.length < columns * rows + 1) {
+            cellStart = new int[columns * rows + 1];
+        }
+    }
+
+    /**
+     * Tests whether the bounding boxes centred on two actors intersect
+     */
+    private boolean overlaps(int i, int j) {
+        return ActorStore.overlaps(x[i], y[i], w[i], h[i], x[j], y[j], w[j], h[j]);
+    }
+
+    /**
+     * Records a colliding pair, growing the chunk's pair buffer if necessary
+     */
+    private void addPair(int chunk, int first, int second) {
+        int count = numPairs[chunk];
+        if (2 * count + 1 >= pairs[chunk].length) {
+            int[] larger = new int[2 * pairs[chunk].length];
+            System.arraycopy(pairs[chunk], 0, larger, 0, pairs[chunk].length);
+            pairs[chunk] = larger;
+        }
+        pairs[chunk][2 * count] = first;
+        pairs[chunk][2 * count + 1] = second;
+        numPairs[chunk] = count + 1;
+    }
+
+    private int cell(int column, int row) {
+        return row * columns + column;
+    }
+
+    private int column(double x) {
+        return wrap((int) Math.floor(x / cellWidth), columns);
+    }
+
+    private int row(double y) {
+        return wrap((int) Math.floor(y / cellHeight), rows);
+    }
+
+    /**
+     * Wraps a cell coordinate onto the torus. Positions lying exactly on the
+     * far edge of the space are also folded back onto the first cell.
+     */
+    private static int wrap(int index, int count) {
+        index %= count;
+        return index < 0 ? index + count : index;
+    }
+}
@@ -0,0 +1,153 @@
+package server;
+
+/**
+ * Workers split a range of actor slots into contiguous chunks and run a task
+ * over each chunk in parallel, returning once all of them are done. The
+ * calling thread works on the first chunk itself. With one thread the task
+ * simply runs over the whole range on the calling thread.
+ *
+ * Tasks must only write to state belonging to their own slots or their own
+ * chunk, and anything combined across chunks should be combined in chunk
+ * order, so that results do not depend on the number of threads.
+ * Handing out work allocates nothing, so the physics step stays garbage free.
+ * A ForkJoinPool would need a new task object for every chunk of every
+ * step, and would split the range however its threads happened to steal,
+ * so these plain threads hand out the same fixed chunks each time instead.
+ * @author Simon, Daniel
+ */
+class Workers {
+
+    private final int numChunks;
+    // The current task, guarded by this
+    private Task task;
+    private int count;
+    private int generation;   // Bumped each time a task is handed out
+    private int pending;      // Chunks handed out but not yet finished
+    private Throwable failure;
+
+    /**
+     * Work on a contiguous range of slots
+     */
+    interface Task {
+
+        /**
+         * @param from The first slot of the chunk
+         * @param to One past the last slot of the chunk
+         * @param chunk The index of the chunk, from 0 to getChunks() - 1
+         */
+        void run(int from, int to, int chunk);
+    }
+
+    /**
+     * Creates a set of workers
+     * @param threads The number of threads to split work across, including
+     * the caller
+     */
+    Workers(int threads) {
+        numChunks = Math.max(1, threads);
+        for (int i = 1; i < numChunks; i++) {
+            Thread thread = new Thread(new Worker(i), "Physics " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return The number of chunks work is split into
+     */
+    int getChunks() {
+        return numChunks;
+    }
+
+    /**
+     * Runs a task over the slots [0, count) and waits for it to finish
+     * @param count The number of slots
+     * @param task The work to do on each chunk
+     */
+    void forEach(int count, Task task) {
+        if (numChunks == 1 || count < numChunks) {
+            // Not worth handing out, but the other chunks still run (empty)
+            // so that per chunk results are reset
+            for (int i = 0; i < numChunks; i++) {
+                runChunk(task, count, i);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            this.task = task;
+            this.count = count;
+            pending = numChunks - 1;
+            failure = null;
+            generation++;
+            notifyAll();
+        }
+        runChunk(task, count, 0);
+        synchronized (this) {
+            try {
+                while (pending > 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted during physics step", e);
+            }
+            if (failure != null) {
+                throw new RuntimeException("Physics worker failed", failure);
+            }
+        }
+    }
+
+    private void runChunk(Task task, int count, int chunk) {
+        task.run(count * chunk / numChunks, count * (chunk + 1) / numChunks, chunk);
+    }
+
+    /**
+     * A thread that waits for each task and runs its chunk of it
+     */
+    private class Worker implements Runnable {
+
+        private final int chunk;
+
+        Worker(int chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void run() {
+            int seen = 0;
+            while (true) {
+                Task current;
+                int currentCount;
+                synchronized (Workers.this) {
+                    try {
+                        while (generation == seen) {
+                            Workers.this.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    seen = generation;
+                    current = task;
+                    currentCount = count;
+                }
+                Throwable thrown = null;
+                try {
+                    runChunk(current, currentCount, chunk);
+                } catch (RuntimeException e) {
+                    thrown = e;
+                } catch (Error e) {
+                    thrown = e;
+                }
+                synchronized (Workers.this) {
+                    if (thrown != null && failure == null) {
+                        failure = thrown;
+                    }
+                    if (--pending == 0) {
+                        Workers.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}